@@ -1,6 +1,7 @@
 package pl.edu.mimuw.cloudatlas.helpers;
 
 import pl.edu.mimuw.cloudatlas.model.ZMI;
+import pl.edu.mimuw.cloudatlas.model.ZMICodec;
 
 import java.io.*;
 import java.security.GeneralSecurityException;
@@ -45,28 +46,19 @@ public class Helpers {
     }
 
     public static byte[] zmiToByteArray(ZMI zmi) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = null;
-        byte[] bytes = null;
-        try {
-            out = new ObjectOutputStream(bos);
-            out.writeObject(zmi);
-            out.flush();
-            bytes = bos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                bos.close();
-            } catch (IOException ex) {
-                // ignore close exception
-            }
-        }
-
-        return bytes;
+        return ZMICodec.encode(zmi);
     }
 
     public static ZMI bytesToZMI(byte[] bytes) {
+        if (ZMICodec.isEncoded(bytes)) {
+            try {
+                return ZMICodec.decode(bytes);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        // Agents of the previous version send ZMIs in Java serialization
         ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
         ObjectInput in = null;
         ZMI zmi = null;
@@ -0,0 +1,338 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExpr;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.CondExpr;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EFunC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EStmtC;
+import pl.edu.mimuw.cloudatlas.model.Type;
+import pl.edu.mimuw.cloudatlas.model.Type.PrimaryType;
+import pl.edu.mimuw.cloudatlas.model.TypePrimitive;
+import pl.edu.mimuw.cloudatlas.model.Value;
+import pl.edu.mimuw.cloudatlas.model.ValueBoolean;
+import pl.edu.mimuw.cloudatlas.model.ValueDouble;
+import pl.edu.mimuw.cloudatlas.model.ValueInt;
+import pl.edu.mimuw.cloudatlas.model.ValueList;
+import pl.edu.mimuw.cloudatlas.model.ValueNull;
+
+/**
+ * Consumes the values of a select item computed for consecutive rows of a table and produces the value of the item,
+ * as the interpreter does after collecting all of them into a list. Most items end with one of the simple
+ * aggregations and are folded into running accumulators, so that no list is built. Items whose result depends on the
+ * whole list are still collected.
+ * <p>
+ * An aggregator throws an exception whenever the list would be rejected by the interpreter. It does not try to
+ * reproduce the error itself: the caller is expected to evaluate the failing item again in the usual way.
+ */
+abstract class Aggregator {
+	private CondExpr input;
+	private boolean direct = false;
+	private Type type;
+
+	/**
+	 * Creates an aggregator for the specified expression of a select item.
+	 *
+	 * @param expr an expression of a select item
+	 * @return an aggregator to feed with the values of its {@link #getInput() input}
+	 */
+	public static Aggregator create(CondExpr expr) {
+		// an item consisting of a single aggregation of an expression without aggregations, e.g. sum(x * 2), takes values
+		// of the inner expression, skipping the aggregation of the one-element list of every row
+		BasicExpr basic = Interpreter.asBasicExpr(expr);
+		if(basic instanceof EFunC && ((EFunC)basic).listcondexpr_.size() == 1) {
+			EFunC function = (EFunC)basic;
+			CondExpr argument = function.listcondexpr_.get(0);
+			Analyzer analyzer = new Analyzer();
+			analyzer.walk(argument);
+			if(analyzer.last == null) {
+				Aggregator aggregator = create(function.qident_);
+				if(aggregator != null) {
+					aggregator.input = argument;
+					aggregator.direct = true;
+					return aggregator;
+				}
+			}
+		}
+
+		Analyzer analyzer = new Analyzer();
+		analyzer.walk(expr);
+		Aggregator aggregator = null;
+		if(analyzer.last == null)
+			aggregator = new First();
+		else if(!analyzer.hasArguments)
+			aggregator = create(analyzer.last);
+		if(aggregator == null)
+			aggregator = new Collecting();
+		aggregator.input = expr;
+		return aggregator;
+	}
+
+	private static Aggregator create(String function) {
+		switch(function) {
+			case "count":
+				return new Count();
+			case "sum":
+				return new Sum(false);
+			case "avg":
+				return new Sum(true);
+			case "min":
+				return new Extreme(false);
+			case "max":
+				return new Extreme(true);
+			case "land":
+				return new Logical(false);
+			case "lor":
+				return new Logical(true);
+			default:
+				return null;
+		}
+	}
+
+	// the expression to evaluate for every row
+	public CondExpr getInput() {
+		return input;
+	}
+
+	// the value of the input computed for the next row, in the row's environment
+	public void add(Value value) {
+		if(direct) {
+			if(value.getType().isCollection())
+				throw new IllegalArgumentException("Aggregation of a collection in a single row.");
+			value = aggregateRow(value);
+		}
+		if(type == null)
+			type = value.getType();
+		else if(!type.isCompatible(value.getType()))
+			throw new IllegalArgumentException("Incompatible values of a select item.");
+		accumulate(value);
+	}
+
+	// the aggregation applied to a list containing only the specified value, as it is computed for every row
+	protected Value aggregateRow(Value value) {
+		throw new UnsupportedOperationException("Aggregation of a single row.");
+	}
+
+	/**
+	 * Gets the value of the item after all the rows have been added.
+	 *
+	 * @param env the environment in which the item was computed for the last row
+	 * @return the value of the item
+	 */
+	public abstract Value finish(Environment env);
+
+	protected abstract void accumulate(Value value);
+
+	// type of the list collected by the interpreter, which is the type of the value for the first row
+	protected Type getType() {
+		return type;
+	}
+
+	// finds aggregations that are evaluated in the environment of the item, so not those of nested statements
+	private static class Analyzer extends QueryWalker {
+		private String last = null;
+		private boolean hasArguments = false;
+
+		@Override
+		protected void visitFunction(EFunC expr) {
+			if(Functions.getInstance().isAggregationFunction(expr.qident_)) {
+				last = expr.qident_;
+				if(expr.listcondexpr_.size() == 2)
+					hasArguments = true;
+			}
+		}
+
+		@Override
+		public Void visit(EStmtC expr, Void arg) {
+			return null;
+		}
+	}
+
+	// an item without aggregation yields its value for the first row
+	private static class First extends Aggregator {
+		private Value first;
+
+		@Override
+		protected void accumulate(Value value) {
+			if(first == null)
+				first = value;
+		}
+
+		@Override
+		public Value finish(Environment env) {
+			return first;
+		}
+	}
+
+	private static class Collecting extends Aggregator {
+		private final List<Value> values = new ArrayList<Value>();
+
+		@Override
+		protected void accumulate(Value value) {
+			values.add(value);
+		}
+
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		@Override
+		public Value finish(Environment env) {
+			ValueList results = new ValueList(getType());
+			results.addAll(values);
+			List arguments = new ArrayList<Result>();
+			if(!env.functionArguments.isEmpty())
+				arguments.add(env.functionArguments.pop());
+			arguments.add(new ResultSingle(results));
+			return Functions.getInstance().evaluate((String)env.aggregationFunctions.pop(), arguments).getValue();
+		}
+	}
+
+	private static class Count extends Aggregator {
+		private long count = 0;
+
+		@Override
+		protected void accumulate(Value value) {
+			if(!value.isNull())
+				++count;
+		}
+
+		@Override
+		protected Value aggregateRow(Value value) {
+			return new ValueInt(value.isNull()? 0l : 1l);
+		}
+
+		@Override
+		public Value finish(Environment env) {
+			return new ValueInt(count);
+		}
+	}
+
+	private static class Sum extends Aggregator {
+		private final boolean average;
+		private Value sum = null;
+		private long count = 0;
+
+		Sum(boolean average) {
+			this.average = average;
+		}
+
+		@Override
+		protected Value aggregateRow(Value value) {
+			checkType(value.getType());
+			if(value.isNull())
+				return ValueNull.getInstance();
+			Value sum = value.getDefaultValue().addValue(value);
+			if(!average)
+				return sum;
+			return sum.divide(value.getType().getPrimaryType() == PrimaryType.DOUBLE? new ValueDouble(1.0)
+					: new ValueInt(1l));
+		}
+
+		private static void checkType(Type type) {
+			PrimaryType primaryType = type.getPrimaryType();
+			if(primaryType != PrimaryType.INT && primaryType != PrimaryType.DOUBLE && primaryType != PrimaryType.DURATION
+					&& primaryType != PrimaryType.NULL)
+				throw new IllegalArgumentException("Aggregation doesn't support type: " + type + ".");
+		}
+
+		@Override
+		protected void accumulate(Value value) {
+			if(value.isNull())
+				return;
+			if(sum == null)
+				sum = value.getDefaultValue();
+			sum = sum.addValue(value);
+			++count;
+		}
+
+		@Override
+		public Value finish(Environment env) {
+			PrimaryType primaryType = getType().getPrimaryType();
+			checkType(getType());
+			if(sum == null)
+				return ValueNull.getInstance();
+			if(!average)
+				return sum;
+			return sum.divide(primaryType == PrimaryType.DOUBLE? new ValueDouble((double)count) : new ValueInt(count));
+		}
+	}
+
+	private static class Extreme extends Aggregator {
+		private final boolean max;
+		private Value result = null;
+
+		Extreme(boolean max) {
+			this.max = max;
+		}
+
+		@Override
+		protected Value aggregateRow(Value value) {
+			if(value.isNull())
+				return ValueNull.getInstance();
+			switch(value.getType().getPrimaryType()) {
+				case INT:
+				case DOUBLE:
+				case TIME:
+				case DURATION:
+					return value;
+				default:
+					// values of other types may not support comparison, which must fail as it does for a list
+					return pick(value, value);
+			}
+		}
+
+		@Override
+		protected void accumulate(Value value) {
+			if(value.isNull())
+				return;
+			result = pick(value, result == null? value : result);
+		}
+
+		private Value pick(Value value, Value current) {
+			if(max) {
+				if(value.isLowerThan(current).negate().and(value.isEqual(current).negate()).getValue())
+					return value;
+			} else if(value.isLowerThan(current).getValue())
+				return value;
+			return current;
+		}
+
+		@Override
+		public Value finish(Environment env) {
+			return result == null? ValueNull.getInstance() : result;
+		}
+	}
+
+	// land stops at the first false value and lor at the first true one, so later values are not checked
+	private static class Logical extends Aggregator {
+		private final boolean or;
+		private boolean decided = false;
+
+		Logical(boolean or) {
+			this.or = or;
+		}
+
+		@Override
+		protected Value aggregateRow(Value value) {
+			if(value.isNull())
+				return new ValueBoolean(!or);
+			if(!value.getType().isCompatible(TypePrimitive.BOOLEAN))
+				throw new IllegalArgumentException("Aggregation doesn't support type: " + value.getType() + ".");
+			return new ValueBoolean(((ValueBoolean)value).getValue());
+		}
+
+		@Override
+		protected void accumulate(Value value) {
+			if(value.isNull() || decided)
+				return;
+			if(!value.getType().isCompatible(TypePrimitive.BOOLEAN))
+				throw new IllegalArgumentException("Aggregation doesn't support type: " + value.getType() + ".");
+			if(((ValueBoolean)value).getValue() == or)
+				decided = true;
+		}
+
+		@Override
+		public Value finish(Environment env) {
+			return new ValueBoolean(decided == or);
+		}
+	}
+}
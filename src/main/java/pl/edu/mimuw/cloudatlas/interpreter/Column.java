@@ -0,0 +1,234 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.util.BitSet;
+
+import pl.edu.mimuw.cloudatlas.model.Type;
+import pl.edu.mimuw.cloudatlas.model.Type.PrimaryType;
+import pl.edu.mimuw.cloudatlas.model.Value;
+import pl.edu.mimuw.cloudatlas.model.ValueBoolean;
+import pl.edu.mimuw.cloudatlas.model.ValueDouble;
+import pl.edu.mimuw.cloudatlas.model.ValueDuration;
+import pl.edu.mimuw.cloudatlas.model.ValueInt;
+import pl.edu.mimuw.cloudatlas.model.ValueNull;
+import pl.edu.mimuw.cloudatlas.model.ValueTime;
+
+/**
+ * A single column of a {@link Table}, holding values of one attribute across all sons of a zone. Columns whose
+ * values are all of the same simple type are stored as primitive arrays, so that aggregations can run over them
+ * without boxing. Two bitmaps record which cells are null and which of them are absent in a son (those are read back
+ * as {@link ValueNull}).
+ */
+abstract class Column {
+	protected final int size;
+	protected final BitSet missing;
+	protected final BitSet nulls;
+	private ResultSingle[] results;
+
+	protected Column(int size) {
+		this.size = size;
+		this.missing = new BitSet(size);
+		this.nulls = new BitSet(size);
+	}
+
+	/**
+	 * Creates a column best suited for the specified cells. Cells equal to <code>null</code> are treated as missing.
+	 *
+	 * @param cells values of the column, one for each son
+	 * @return a new column
+	 */
+	public static Column create(Value[] cells) {
+		Type type = null;
+		for(Value v : cells) {
+			if(v == null || v == ValueNull.getInstance())
+				continue;
+			if(type == null)
+				type = v.getType();
+			else if(type.getPrimaryType() != v.getType().getPrimaryType() || type.isCollection()) {
+				type = null;
+				break;
+			}
+		}
+		Column column;
+		if(type == null || type.isCollection())
+			column = new ValueColumn(cells.length);
+		else {
+			switch(type.getPrimaryType()) {
+				case INT:
+				case BOOLEAN:
+				case TIME:
+				case DURATION:
+					column = new LongColumn(type.getPrimaryType(), cells.length);
+					break;
+				case DOUBLE:
+					column = new DoubleColumn(cells.length);
+					break;
+				default:
+					column = new ValueColumn(cells.length);
+			}
+		}
+		for(int i = 0; i < cells.length; ++i) {
+			Value v = cells[i];
+			if(v == null || v == ValueNull.getInstance()) {
+				column.missing.set(i);
+				column.nulls.set(i);
+			} else {
+				if(v.isNull())
+					column.nulls.set(i);
+				column.set(i, v);
+			}
+		}
+		return column;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the primary type of all the values in this column, or <code>null</code> if values are not stored in a
+	 * primitive array.
+	 */
+	public PrimaryType getPrimaryType() {
+		return null;
+	}
+
+	public boolean isNull(int row) {
+		return nulls.get(row);
+	}
+
+	public boolean isMissing(int row) {
+		return missing.get(row);
+	}
+
+	public Value get(int row) {
+		if(missing.get(row))
+			return ValueNull.getInstance();
+		return getPresent(row);
+	}
+
+	// the cell wrapped for the interpreter; wrappers are created on first use and then reused, a table being evaluated
+	// by a single thread
+	public ResultSingle getResult(int row) {
+		if(results == null)
+			results = new ResultSingle[size];
+		ResultSingle result = results[row];
+		if(result == null) {
+			result = new ResultSingle(get(row));
+			results[row] = result;
+		}
+		return result;
+	}
+
+	protected abstract Value getPresent(int row);
+
+	// called for every cell that is not missing, including nulls
+	protected abstract void set(int row, Value value);
+
+	static class LongColumn extends Column {
+		private final PrimaryType type;
+		private final long[] values;
+
+		LongColumn(PrimaryType type, int size) {
+			super(size);
+			this.type = type;
+			this.values = new long[size];
+		}
+
+		@Override
+		public PrimaryType getPrimaryType() {
+			return type;
+		}
+
+		public long getLong(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected Value getPresent(int row) {
+			Long value = nulls.get(row)? null : values[row];
+			switch(type) {
+				case INT:
+					return new ValueInt(value);
+				case TIME:
+					return new ValueTime(value);
+				case DURATION:
+					return new ValueDuration(value);
+				case BOOLEAN:
+					return new ValueBoolean(value == null? null : value != 0l);
+				default:
+					throw new InternalInterpreterException("Unexpected type of a primitive column: " + type + ".");
+			}
+		}
+
+		@Override
+		protected void set(int row, Value value) {
+			if(value.isNull())
+				return;
+			switch(type) {
+				case INT:
+					values[row] = ((ValueInt)value).getValue();
+					break;
+				case TIME:
+					values[row] = ((ValueTime)value).getValue();
+					break;
+				case DURATION:
+					values[row] = ((ValueDuration)value).getValue();
+					break;
+				case BOOLEAN:
+					values[row] = ((ValueBoolean)value).getValue()? 1l : 0l;
+					break;
+				default:
+					throw new InternalInterpreterException("Unexpected type of a primitive column: " + type + ".");
+			}
+		}
+	}
+
+	static class DoubleColumn extends Column {
+		private final double[] values;
+
+		DoubleColumn(int size) {
+			super(size);
+			this.values = new double[size];
+		}
+
+		@Override
+		public PrimaryType getPrimaryType() {
+			return PrimaryType.DOUBLE;
+		}
+
+		public double getDouble(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected Value getPresent(int row) {
+			return new ValueDouble(nulls.get(row)? null : values[row]);
+		}
+
+		@Override
+		protected void set(int row, Value value) {
+			if(!value.isNull())
+				values[row] = ((ValueDouble)value).getValue();
+		}
+	}
+
+	// any other values, kept as they are
+	static class ValueColumn extends Column {
+		private final Value[] values;
+
+		ValueColumn(int size) {
+			super(size);
+			this.values = new Value[size];
+		}
+
+		@Override
+		protected Value getPresent(int row) {
+			return values[row];
+		}
+
+		@Override
+		protected void set(int row, Value value) {
+			values[row] = value;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+public enum ContactSelectionType {
+    Random, RoundTripWeighted;
+
+    public static ContactSelectionType fromString(String type) {
+        switch (type) {
+            case "RANDOM": return Random;
+            case "RTT": return RoundTripWeighted;
+        }
+        return Random;
+    }
+}
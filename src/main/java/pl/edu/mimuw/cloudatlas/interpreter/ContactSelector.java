@@ -0,0 +1,98 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import pl.edu.mimuw.cloudatlas.model.ValueContact;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses a contact to gossip with. With RoundTripWeighted selection it keeps, for every contact, moving averages of
+ * the round trip time and of the share of failed connections, and picks contacts with probability proportional to
+ * (1 - loss)^2 / (rtt + RTT_FLOOR). A slow contact is still chosen sometimes, a dead one almost never, so a round is
+ * rarely wasted on handshake timeouts. Every EXPLORATION-th choice on average is uniform, so contacts which recovered
+ * and unknown contacts get measured.
+ */
+public class ContactSelector {
+    // Weight of a new sample in the moving averages
+    private static final double ALPHA = 0.25;
+    private static final double EXPLORATION = 0.1;
+    // Makes all contacts below a few milliseconds equally good
+    private static final double RTT_FLOOR = 5;
+
+    private static class Statistics {
+        // -1 until the first successful connection
+        double roundTrip = -1;
+        double loss = 0;
+    }
+
+    private final ContactSelectionType type;
+    private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
+    private final Random random;
+
+    public ContactSelector(ContactSelectionType type) {
+        this(type, new Random());
+    }
+
+    public ContactSelector(ContactSelectionType type, Random random) {
+        this.type = type;
+        this.random = random;
+    }
+
+    public ValueContact select(List<ValueContact> contacts) {
+        if (type == ContactSelectionType.Random || random.nextDouble() < EXPLORATION) {
+            return contacts.get(random.nextInt(contacts.size()));
+        }
+        double[] weights = new double[contacts.size()];
+        double total = 0;
+        for (int i = 0; i < contacts.size(); i++) {
+            weights[i] = weight(contacts.get(i));
+            total += weights[i];
+        }
+        double point = random.nextDouble() * total;
+        for (int i = 0; i < contacts.size(); i++) {
+            point -= weights[i];
+            if (point < 0) {
+                return contacts.get(i);
+            }
+        }
+        return contacts.get(contacts.size() - 1);
+    }
+
+    private double weight(ValueContact contact) {
+        Statistics contactStatistics = statistics.get(contact.getName().getName());
+        if (contactStatistics == null) {
+            // Not tried yet, as good as the fastest contact
+            return 1 / RTT_FLOOR;
+        }
+        synchronized (contactStatistics) {
+            double roundTrip = contactStatistics.roundTrip < 0 ? 0 : contactStatistics.roundTrip;
+            double delivery = 1 - contactStatistics.loss;
+            return delivery * delivery / (roundTrip + RTT_FLOOR);
+        }
+    }
+
+    /**
+     * Records a successful connection to the contact.
+     *
+     * @param roundTrip measured round trip time in milliseconds, negative if unknown
+     */
+    public void recordSuccess(ValueContact contact, long roundTrip) {
+        Statistics contactStatistics = statistics.computeIfAbsent(contact.getName().getName(), name -> new Statistics());
+        synchronized (contactStatistics) {
+            contactStatistics.loss = (1 - ALPHA) * contactStatistics.loss;
+            if (roundTrip >= 0) {
+                contactStatistics.roundTrip = contactStatistics.roundTrip < 0 ? roundTrip
+                        : (1 - ALPHA) * contactStatistics.roundTrip + ALPHA * roundTrip;
+            }
+        }
+    }
+
+    public void recordFailure(ValueContact contact) {
+        Statistics contactStatistics = statistics.computeIfAbsent(contact.getName().getName(), name -> new Statistics());
+        synchronized (contactStatistics) {
+            contactStatistics.loss = (1 - ALPHA) * contactStatistics.loss + ALPHA;
+        }
+    }
+}
@@ -24,31 +24,40 @@
 
 package pl.edu.mimuw.cloudatlas.interpreter;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EIdentC;
 import pl.edu.mimuw.cloudatlas.model.ValueNull;
 
+// a cursor over rows of a table; identifiers are bound to columns once, when the environment is created
 class Environment {
-	private final TableRow row;
-	private final Map<String, Integer> columns = new HashMap<String, Integer>();
+	private static final ResultSingle NULL = new ResultSingle(ValueNull.getInstance());
+
+	private final Table table;
+	private final IdentifierSlots slots;
+	private final Column[] columns;
+	private int row;
 	public Stack aggregationFunctions = new Stack<String>();
 	public Stack functionArguments = new Stack<Result>();
 
-	public Environment(TableRow row, List<String> columns) {
+	public Environment(Table table, IdentifierSlots slots) {
+		this.table = table;
+		this.slots = slots;
+		this.columns = table.bind(slots);
+	}
+
+	// moves to a row given by its index in the column storage (see Table.getRowIndices())
+	public void setRow(int row) {
 		this.row = row;
-		int i = 0;
-		for(String c : columns)
-			this.columns.put(c, i++);
+		aggregationFunctions.clear();
+		functionArguments.clear();
 	}
 
-	public Result getIdent(String ident) {
-		try {
-			return new ResultSingle(row.getIth(columns.get(ident)));
-		} catch(NullPointerException exception) {
-			return new ResultSingle(ValueNull.getInstance());
-		}
+	public Result getIdent(EIdentC ident) {
+		int slot = slots.getSlot(ident);
+		Column column = slot < 0? table.getColumnData(ident.qident_) : columns[slot];
+		if(column == null)
+			return NULL;
+		return column.getResult(row);
 	}
 }
@@ -29,7 +29,9 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import pl.edu.mimuw.cloudatlas.interpreter.Result.AggregationOperation;
 import pl.edu.mimuw.cloudatlas.interpreter.Result.TransformOperation;
@@ -41,6 +43,7 @@ import pl.edu.mimuw.cloudatlas.model.TypePrimitive;
 import pl.edu.mimuw.cloudatlas.model.Value;
 import pl.edu.mimuw.cloudatlas.model.ValueBoolean;
 import pl.edu.mimuw.cloudatlas.model.ValueDouble;
+import pl.edu.mimuw.cloudatlas.model.ValueDuration;
 import pl.edu.mimuw.cloudatlas.model.ValueInt;
 import pl.edu.mimuw.cloudatlas.model.ValueList;
 import pl.edu.mimuw.cloudatlas.model.ValueNull;
@@ -48,7 +51,7 @@ import pl.edu.mimuw.cloudatlas.model.ValueSet;
 import pl.edu.mimuw.cloudatlas.model.ValueTime;
 
 class Functions {
-	private static Functions instance = null;
+	private static final Functions instance = new Functions();
 
 	private static final UnaryOperation ROUND = new UnaryOperation() {
 		@Override
@@ -289,6 +292,28 @@ class Functions {
 
 	private final ValueTime EPOCH;
 
+	// evaluates a function for arguments of the right number
+	private interface Body {
+		Result evaluate(List<Result> arguments);
+	}
+
+	private static final class Function {
+		final int arity;
+		final boolean aggregation;
+		// whether the result depends only on the arguments
+		final boolean deterministic;
+		final Body body;
+
+		Function(int arity, boolean aggregation, boolean deterministic, Body body) {
+			this.arity = arity;
+			this.aggregation = aggregation;
+			this.deterministic = deterministic;
+			this.body = body;
+		}
+	}
+
+	private final Map<String, Function> functions = new HashMap<String, Function>();
+
 	private Functions() {
 		try {
 			EPOCH = new ValueTime("2000/01/01 00:00:00.000");
@@ -296,182 +321,236 @@ class Functions {
 			throw new InternalInterpreterException("Cannot parse time when creating an EPOCH object.\n"
 					+ exception.getMessage());
 		}
+		registerFunctions();
 	}
 
 	public static Functions getInstance() {
-		if(instance == null)
-			instance = new Functions();
 		return instance;
 	}
 
 	public Result evaluate(String name, List<Result> arguments) {
+		Function function = functions.get(name);
+		if(function == null)
+			throw new IllegalArgumentException("Illegal function name.");
+		if(arguments.size() != function.arity)
+			throw new IllegalArgumentException("Illegal number of arguments.");
+		return function.body.evaluate(arguments);
+	}
+
+	// registers the functions callable from queries; this table is the only list of their names
+	private void registerFunctions() {
+		register("round", 1, false, arguments -> arguments.get(0).unaryOperation(ROUND));
+		register("floor", 1, false, arguments -> arguments.get(0).unaryOperation(FLOOR));
+		register("ceil", 1, false, arguments -> arguments.get(0).unaryOperation(CEIL));
+		register("now", 0, false, false,
+				arguments -> new ResultSingle(new ValueTime(Calendar.getInstance().getTimeInMillis())));
+		register("epoch", 0, false, arguments -> new ResultSingle(EPOCH));
+		register("count", 1, true, arguments -> arguments.get(0).aggregationOperation(COUNT));
+		register("size", 1, false, arguments -> arguments.get(0).valueSize());
+		register("sum", 1, true, arguments -> arguments.get(0).aggregationOperation(SUM));
+		register("avg", 1, true, arguments -> arguments.get(0).aggregationOperation(AVERAGE));
+		register("land", 1, true, arguments -> arguments.get(0).aggregationOperation(AND));
+		register("lor", 1, true, arguments -> arguments.get(0).aggregationOperation(OR));
+		register("min", 1, true, arguments -> arguments.get(0).aggregationOperation(MIN));
+		register("max", 1, true, arguments -> arguments.get(0).aggregationOperation(MAX));
+		register("unfold", 1, false, arguments -> arguments.get(0).transformOperation(UNFOLD));
+		register("distinct", 1, false, arguments -> arguments.get(0).transformOperation(DISTINCT));
+		register("sort", 1, false, arguments -> arguments.get(0).transformOperation(SORT));
+		register("filterNulls", 1, false, arguments -> arguments.get(0).filterNulls());
+		register("first", 2, true, arguments -> arguments.get(1).first(getSize(arguments.get(0))));
+		register("last", 2, true, arguments -> arguments.get(1).last(getSize(arguments.get(0))));
+		register("random", 2, true, false, arguments -> arguments.get(1).random(getSize(arguments.get(0))));
+		register("to_boolean", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.BOOLEAN));
+		register("to_contact", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.CONTACT));
+		register("to_double", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.DOUBLE));
+		register("to_duration", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.DURATION));
+		register("to_integer", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.INTEGER));
+		register("to_string", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.STRING));
+		register("to_time", 1, false, arguments -> arguments.get(0).convertTo(TypePrimitive.TIME));
+		register("to_set", 1, false, arguments -> convertCollection(arguments.get(0), Type.PrimaryType.SET));
+		register("to_list", 1, false, arguments -> convertCollection(arguments.get(0), Type.PrimaryType.LIST));
+		register("isNull", 1, false, arguments -> arguments.get(0).isNull());
+	}
+
+	private void register(String name, int arity, boolean aggregation, Body body) {
+		register(name, arity, aggregation, true, body);
+	}
+
+	private void register(String name, int arity, boolean aggregation, boolean deterministic, Body body) {
+		functions.put(name, new Function(arity, aggregation, deterministic, body));
+	}
+
+	// the number of elements taken by first, last and random
+	private static int getSize(Result argument) {
+		Value size = argument.getValue();
+		if(size.getType().isCompatible(TypePrimitive.INTEGER) && ((ValueInt)size).getValue().intValue() >= 0)
+			return ((ValueInt)size).getValue().intValue();
+		throw new IllegalArgumentException("First argument must have type " + TypePrimitive.INTEGER
+				+ " and be >= 0.");
+	}
+
+	private static Result convertCollection(Result argument, Type.PrimaryType primaryType) {
+		Type t = argument.getType();
+		if(t.isCollection()) {
+			Type elementType = ((TypeCollection)t).getElementType();
+			return argument.convertTo(new TypeCollection(primaryType, elementType));
+		}
+		throw new IllegalArgumentException("First argument must be a collection.");
+	}
+
+	/**
+	 * Evaluates an aggregation of a single column in one loop over its primitive values. The result is the same as
+	 * the one produced by the interpreter, which applies the aggregation to every row and then to the list of partial
+	 * results.
+	 *
+	 * @param name name of the aggregation
+	 * @param column storage of the aggregated column
+	 * @param rows indices of the aggregated rows in the column
+	 * @param count number of valid entries in <code>rows</code>, must be positive
+	 * @return the result of the aggregation or <code>null</code> if it cannot be computed this way and must be
+	 * evaluated row by row
+	 */
+	Value aggregateColumn(String name, Column column, int[] rows, int count) {
+		if(count == 0)
+			return null;
+		// every partial result of count is a number, even for a null row, so only the rows are counted
+		if(name.equals("count"))
+			return new ValueInt((long)count);
+		PrimaryType type = column.getPrimaryType();
+		if(type == null)
+			return null;
 		switch(name) {
-			case "round":
-				if(arguments.size() == 1)
-					return arguments.get(0).unaryOperation(ROUND);
-				break;
-			case "floor":
-				if(arguments.size() == 1)
-					return arguments.get(0).unaryOperation(FLOOR);
-				break;
-			case "ceil":
-				if(arguments.size() == 1)
-					return arguments.get(0).unaryOperation(CEIL);
-				break;
-			case "now":
-				if(arguments.size() == 0)
-					return new ResultSingle(new ValueTime(Calendar.getInstance().getTimeInMillis()));
-				break;
-			case "epoch":
-				if(arguments.size() == 0)
-					return new ResultSingle(EPOCH);
-				break;
-			case "count":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(COUNT);
-				break;
-			case "size":
-				if(arguments.size() == 1)
-					return arguments.get(0).valueSize();
-				break;
 			case "sum":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(SUM);
+				if(type == PrimaryType.INT || type == PrimaryType.DURATION)
+					return sumLongColumn((Column.LongColumn)column, rows, count);
+				if(type == PrimaryType.DOUBLE)
+					return sumDoubleColumn((Column.DoubleColumn)column, rows, count);
 				break;
 			case "avg":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(AVERAGE);
-				break;
-			case "land":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(AND);
-				break;
-			case "lor":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(OR);
+				// partial results are doubles and a null in the first row makes the final division fail
+				if(column.isNull(rows[0]))
+					break;
+				if(type == PrimaryType.INT || type == PrimaryType.DOUBLE)
+					return averageColumn(column, rows, count);
 				break;
 			case "min":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(MIN);
-				break;
 			case "max":
-				if(arguments.size() == 1)
-					return arguments.get(0).aggregationOperation(MAX);
+				boolean max = name.equals("max");
+				if(type == PrimaryType.INT || type == PrimaryType.TIME || type == PrimaryType.DURATION)
+					return extremeLongColumn((Column.LongColumn)column, rows, count, max);
+				if(type == PrimaryType.DOUBLE)
+					return extremeDoubleColumn((Column.DoubleColumn)column, rows, count, max);
 				break;
-			case "unfold":
-				if(arguments.size() == 1)
-					return arguments.get(0).transformOperation(UNFOLD);
-				break;
-			case "distinct":
-				if(arguments.size() == 1)
-					return arguments.get(0).transformOperation(DISTINCT);
-				break;
-			case "sort":
-				if(arguments.size() == 1)
-					return arguments.get(0).transformOperation(SORT);
-				break;
-			case "filterNulls":
-				if(arguments.size() == 1)
-					return arguments.get(0).filterNulls();
-				break;
-			case "first":
-				if(arguments.size() == 2) {
-					Value size = arguments.get(0).getValue();
-					if(size.getType().isCompatible(TypePrimitive.INTEGER) && ((ValueInt)size).getValue().intValue() >= 0)
-						return arguments.get(1).first(((ValueInt)size).getValue().intValue());
-					throw new IllegalArgumentException("First argument must have type " + TypePrimitive.INTEGER
-							+ " and be >= 0.");
-				}
-				break;
-			case "last":
-				if(arguments.size() == 2) {
-					Value size = arguments.get(0).getValue();
-					if(size.getType().isCompatible(TypePrimitive.INTEGER) && ((ValueInt)size).getValue().intValue() >= 0)
-						return arguments.get(1).last(((ValueInt)size).getValue().intValue());
-					throw new IllegalArgumentException("First argument must have type " + TypePrimitive.INTEGER
-							+ " and be >= 0.");
-				}
-				break;
-			case "random":
-				if(arguments.size() == 2) {
-					Value size = arguments.get(0).getValue();
-					if(size.getType().isCompatible(TypePrimitive.INTEGER) && ((ValueInt)size).getValue().intValue() >= 0)
-						return arguments.get(1).random(((ValueInt)size).getValue().intValue());
-					throw new IllegalArgumentException("First argument must have type " + TypePrimitive.INTEGER
-							+ " and be >= 0.");
-				}
-				break;
-			case "to_boolean":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.BOOLEAN);
-				break;
-			case "to_contact":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.CONTACT);
-				break;
-			case "to_double":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.DOUBLE);
-				break;
-			case "to_duration":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.DURATION);
-				break;
-			case "to_integer":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.INTEGER);
-				break;
-			case "to_string":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.STRING);
-				break;
-			case "to_time":
-				if(arguments.size() == 1)
-					return arguments.get(0).convertTo(TypePrimitive.TIME);
-				break;
-			case "to_set":
-				if(arguments.size() == 1) {
-					Type t = arguments.get(0).getType();
-					if(t.isCollection()) {
-						Type elementType = ((TypeCollection)t).getElementType();
-						return arguments.get(0).convertTo(new TypeCollection(Type.PrimaryType.SET, elementType));
-					}
-					throw new IllegalArgumentException("First argument must be a collection.");
+		}
+		return null;
+	}
+
+	private static Value sumLongColumn(Column.LongColumn column, int[] rows, int count) {
+		long sum = 0;
+		boolean empty = true;
+		for(int i = 0; i < count; ++i) {
+			int row = rows[i];
+			if(!column.isNull(row)) {
+				sum += column.getLong(row);
+				empty = false;
+			}
+		}
+		if(empty)
+			return ValueNull.getInstance();
+		return column.getPrimaryType() == PrimaryType.INT? new ValueInt(sum) : new ValueDuration(sum);
+	}
+
+	private static Value sumDoubleColumn(Column.DoubleColumn column, int[] rows, int count) {
+		double sum = 0.0;
+		boolean empty = true;
+		for(int i = 0; i < count; ++i) {
+			int row = rows[i];
+			if(!column.isNull(row)) {
+				sum += column.getDouble(row);
+				empty = false;
+			}
+		}
+		return empty? ValueNull.getInstance() : new ValueDouble(sum);
+	}
+
+	private static Value averageColumn(Column column, int[] rows, int count) {
+		double sum = 0.0;
+		long n = 0;
+		if(column instanceof Column.LongColumn) {
+			Column.LongColumn longs = (Column.LongColumn)column;
+			for(int i = 0; i < count; ++i) {
+				int row = rows[i];
+				if(!column.isNull(row)) {
+					sum += (double)longs.getLong(row);
+					++n;
 				}
-				break;
-			case "to_list":
-				if(arguments.size() == 1) {
-					Type t = arguments.get(0).getType();
-					if(t.isCollection()) {
-						Type elementType = ((TypeCollection)t).getElementType();
-						return arguments.get(0).convertTo(new TypeCollection(Type.PrimaryType.LIST, elementType));
-					}
-					throw new IllegalArgumentException("First argument must be a collection.");
+			}
+		} else {
+			Column.DoubleColumn doubles = (Column.DoubleColumn)column;
+			for(int i = 0; i < count; ++i) {
+				int row = rows[i];
+				if(!column.isNull(row)) {
+					sum += doubles.getDouble(row);
+					++n;
 				}
-				break;
-			case "isNull":
-				if(arguments.size() == 1)
-					return arguments.get(0).isNull();
-				break;
+			}
+		}
+		return new ValueDouble(sum / (double)n);
+	}
+
+	private static Value extremeLongColumn(Column.LongColumn column, int[] rows, int count, boolean max) {
+		long result = 0;
+		boolean empty = true;
+		for(int i = 0; i < count; ++i) {
+			int row = rows[i];
+			if(column.isNull(row))
+				continue;
+			long v = column.getLong(row);
+			if(empty || (max? v > result : v < result))
+				result = v;
+			empty = false;
+		}
+		if(empty)
+			return ValueNull.getInstance();
+		switch(column.getPrimaryType()) {
+			case TIME:
+				return new ValueTime(result);
+			case DURATION:
+				return new ValueDuration(result);
 			default:
-				throw new IllegalArgumentException("Illegal function name.");
+				return new ValueInt(result);
 		}
-		throw new IllegalArgumentException("Illegal number of arguments.");
 	}
 
-	public Boolean isAggregationFunction(String name) {
-		switch (name) {
-			case "count": return true;
-			case "sum":   return true;
-			case "avg":   return true;
-			case "land":  return true;
-			case "lor":   return true;
-			case "min":   return true;
-			case "max":   return true;
-			case "first": return true;
-			case "last":  return true;
-			case "random":return true;
-			default:      return false;
+	// mirrors comparisons of ValueDouble, so that NaNs and signed zeros are handled as in MIN and MAX
+	private static Value extremeDoubleColumn(Column.DoubleColumn column, int[] rows, int count, boolean max) {
+		double result = 0.0;
+		boolean empty = true;
+		for(int i = 0; i < count; ++i) {
+			int row = rows[i];
+			if(column.isNull(row))
+				continue;
+			double v = column.getDouble(row);
+			if(empty)
+				result = v;
+			else if(max? !(v < result) && !Double.valueOf(v).equals(result) : v < result)
+				result = v;
+			empty = false;
 		}
+		return empty? ValueNull.getInstance() : new ValueDouble(result);
+	}
+
+	public boolean isFunction(String name) {
+		return functions.containsKey(name);
+	}
+
+	public Boolean isAggregationFunction(String name) {
+		Function function = functions.get(name);
+		return function != null && function.aggregation;
+	}
+
+	public boolean isDeterministic(String name) {
+		Function function = functions.get(name);
+		return function == null || function.deterministic;
 	}
 }
@@ -1,48 +1,99 @@
 package pl.edu.mimuw.cloudatlas.interpreter;
 
-import pl.edu.mimuw.cloudatlas.model.ValueContact;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-import java.util.logging.Level;
+import java.util.SplittableRandom;
 
+/**
+ * Chooses the level of the zone to gossip with in every round, from 1 (sons of the root) to the depth of the own zone
+ * (siblings of the own zone). Exponential strategies gossip with a level k levels above the own zone base^k times less
+ * often than with the siblings, so information crosses the top of the hierarchy rarely but still spreads in a
+ * logarithmic number of rounds:
+ * <ul>
+ * <li>RandomSameProbability - every level with the same probability;</li>
+ * <li>RandomExpProbability - a level k levels above the siblings with probability proportional to base^-k;</li>
+ * <li>RoundRobinSameFrequency - all levels in turn, from the siblings up;</li>
+ * <li>RoundRobinExpFrequency - round r gossips k levels above the siblings, where base^k is the greatest power of
+ * base dividing r, so every base-th round goes one level up, every base^2-th round two levels up and so on.</li>
+ * </ul>
+ */
 public class GossipLevelGenerator {
+    public static final int DEFAULT_BASE = 2;
+
     private GossipType type;
-    private ArrayList<Long> previousLevels = new ArrayList();
-    private Integer previousLevel = 0;
     private Long depth = 0l;
+    private int base = DEFAULT_BASE;
+    private final SplittableRandom random;
+    private long round = 0;
 
     public GossipLevelGenerator(GossipType type) {
-
+        this(type, 1l);
     }
 
     public GossipLevelGenerator(GossipType type, Long depth) {
+        this(type, depth, DEFAULT_BASE, new SplittableRandom());
+    }
+
+    /**
+     * @param depth level of the own zone
+     * @param base ratio of frequencies of gossiping with subsequent levels in exponential strategies, at least 2
+     */
+    public GossipLevelGenerator(GossipType type, Long depth, int base, SplittableRandom random) {
         this.type = type;
         this.depth = depth;
+        this.base = Math.max(base, 2);
+        this.random = random;
     }
 
     public Long next() {
-        Random rand = new Random();
-        Integer gossipLevel = rand.nextInt(depth.intValue()) + 1;
+        if (depth < 1) {
+            return 0l;
+        }
+        int levels = depth.intValue();
+        round++;
         switch (type) {
             case RandomExpProbability: {
-                return gossipLevel.longValue();
+                return depth - randomExpDistance(levels);
             }
             case RandomSameProbability: {
-                return gossipLevel.longValue();
+                return (long) random.nextInt(levels) + 1;
             }
             case RoundRobinExpFrequency: {
-                Integer level = previousLevel == 2 ? 1 : previousLevel + 1;
-                previousLevel = level;
-                return level.longValue();
+                return depth - roundRobinExpDistance(levels);
             }
             case RoundRobinSameFrequency: {
-                Integer level = previousLevel == 2 ? 1 : previousLevel + 1;
-                previousLevel = level;
-                return level.longValue();
+                return depth - (round - 1) % levels;
             }
         }
         return 0l;
     }
+
+    // Distance from the siblings, k with probability proportional to base^-k
+    private int randomExpDistance(int levels) {
+        double total = 0;
+        double weight = 1;
+        for (int k = 0; k < levels; k++) {
+            total += weight;
+            weight /= base;
+        }
+        double point = random.nextDouble() * total;
+        weight = 1;
+        for (int k = 0; k < levels - 1; k++) {
+            point -= weight;
+            if (point < 0) {
+                return k;
+            }
+            weight /= base;
+        }
+        return levels - 1;
+    }
+
+    // Distance from the siblings, the exponent of the greatest power of base dividing the round
+    private int roundRobinExpDistance(int levels) {
+        int k = 0;
+        long rest = round;
+        while (k < levels - 1 && rest % base == 0) {
+            rest /= base;
+            k++;
+        }
+        return k;
+    }
 }
@@ -0,0 +1,84 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EIdentC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.Statement;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.StatementC;
+
+/**
+ * Numbers the distinct attribute names referenced by a statement, so that a {@link Table} can translate slots to its
+ * columns once per statement and rows are then read by an array index. The slot of every identifier node of the
+ * statement is kept in a table on the side, the syntax tree itself is not modified. Identifiers of nested statements
+ * belong to the slots of those statements, since they are evaluated over tables of their own.
+ * <p>
+ * Once resolved, slots are never modified, so they may be shared by many threads.
+ */
+class IdentifierSlots {
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Integer> byName = new HashMap<String, Integer>();
+	private final Map<EIdentC, Integer> slots = new IdentityHashMap<EIdentC, Integer>();
+
+	private IdentifierSlots() {}
+
+	public static IdentifierSlots resolve(Statement statement) {
+		return resolveAll(statement).get(statement);
+	}
+
+	// slots of the statement and of all the statements nested in it
+	public static Map<Statement, IdentifierSlots> resolveAll(Statement statement) {
+		Resolver resolver = new Resolver();
+		resolver.walk(statement);
+		return resolver.resolved;
+	}
+
+	public String getName(int slot) {
+		return names.get(slot);
+	}
+
+	// the slot of an identifier of this statement, or -1 for an identifier of another statement
+	public int getSlot(EIdentC ident) {
+		Integer slot = slots.get(ident);
+		return slot == null? -1 : slot;
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	private void add(EIdentC ident) {
+		Integer slot = byName.get(ident.qident_);
+		if(slot == null) {
+			slot = names.size();
+			names.add(ident.qident_);
+			byName.put(ident.qident_, slot);
+		}
+		slots.put(ident, slot);
+	}
+
+	private static class Resolver extends QueryWalker {
+		private final Map<Statement, IdentifierSlots> resolved = new IdentityHashMap<Statement, IdentifierSlots>();
+		private final Deque<IdentifierSlots> statements = new ArrayDeque<IdentifierSlots>();
+
+		@Override
+		protected void enterStatement(StatementC statement) {
+			statements.push(new IdentifierSlots());
+		}
+
+		@Override
+		protected void exitStatement(StatementC statement) {
+			resolved.put(statement, statements.pop());
+		}
+
+		@Override
+		protected void visitIdentifier(EIdentC expr) {
+			statements.peek().add(expr);
+		}
+	}
+}
@@ -26,7 +26,6 @@ package pl.edu.mimuw.cloudatlas.interpreter;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
 
@@ -99,6 +98,15 @@ public class Interpreter {
 	}
 
 	private final ZMI zmi;
+	// the plan being interpreted, if any
+	private QueryPlan plan;
+
+	private final CondExprInterpreter condExprInterpreter = new CondExprInterpreter();
+	private final BoolExprInterpreter boolExprInterpreter = new BoolExprInterpreter();
+	private final BasicExprInterpreter basicExprInterpreter = new BasicExprInterpreter();
+	private final RelOpInterpreter relOpInterpreter = new RelOpInterpreter();
+	private final NullsInterpreter nullsInterpreter = new NullsInterpreter();
+	private final OrderInterpreter orderInterpreter = new OrderInterpreter();
 
 	public Interpreter(ZMI zmi) {
 		this.zmi = zmi;
@@ -113,13 +121,115 @@ public class Interpreter {
 	}
 
 	public List<QueryResult> interpretProgram(Program program) {
+		plan = null;
 		return program.accept(new ProgramInterpreter(), zmi);
 	}
 
+	public List<QueryResult> interpretPlan(QueryPlan plan) {
+		this.plan = plan;
+		return plan.getProgram().accept(new ProgramInterpreter(), zmi);
+	}
+
 	public List<QueryResult> interpretStatement(Statement statement) {
+		plan = null;
 		return statement.accept(new StatementInterpreter(), zmi);
 	}
 
+	// a single aggregation of a column, such as sum(x), is computed directly over the column storage
+	private Value aggregateColumn(CondExpr expr, Table table) {
+		BasicExpr basic = asBasicExpr(expr);
+		if(!(basic instanceof EFunC))
+			return null;
+		EFunC function = (EFunC)basic;
+		if(function.listcondexpr_.size() != 1)
+			return null;
+		BasicExpr argument = asBasicExpr(function.listcondexpr_.get(0));
+		if(!(argument instanceof EIdentC))
+			return null;
+		Column column = table.getColumnData(((EIdentC)argument).qident_);
+		if(column == null)
+			return null;
+		return Functions.getInstance().aggregateColumn(function.qident_, column, table.getRowIndices(),
+				table.getRowCount());
+	}
+
+	static BasicExpr asBasicExpr(CondExpr expr) {
+		if(expr instanceof CondExprBoolExprC && ((CondExprBoolExprC)expr).boolexpr_ instanceof BoolExprBasicExprC)
+			return ((BoolExprBasicExprC)((CondExprBoolExprC)expr).boolexpr_).basicexpr_;
+		return null;
+	}
+
+	// evaluates all the items of a statement in a single pass over the table, or returns null if the statement must be
+	// evaluated item by item; an item that fails is dropped from the pass and left null, so that only that item is
+	// evaluated again, which is the way to report its error
+	private List<QueryResult> selectFused(List<SelItem> selItems, Table table, IdentifierSlots slots) {
+		if(table.getRowCount() == 0)
+			return null;
+		int size = selItems.size();
+		Value[] values = new Value[size];
+		boolean[] failed = new boolean[size];
+		Aggregator[] aggregators = new Aggregator[size];
+		Environment[] envs = new Environment[size];
+		CondExpr[] exprs = new CondExpr[size];
+		int remaining = 0;
+		for(int i = 0; i < size; ++i) {
+			try {
+				CondExpr expr = getCondExpr(selItems.get(i));
+				values[i] = aggregateColumn(expr, table);
+				if(values[i] == null) {
+					aggregators[i] = Aggregator.create(expr);
+					exprs[i] = aggregators[i].getInput();
+					envs[i] = new Environment(table, slots);
+					++remaining;
+				}
+			} catch(Exception exception) {
+				failed[i] = true;
+			}
+		}
+		if(remaining > 0) {
+			int[] rows = table.getRowIndices();
+			for(int r = 0; r < table.getRowCount(); ++r) {
+				for(int i = 0; i < size; ++i) {
+					if(aggregators[i] == null)
+						continue;
+					try {
+						envs[i].setRow(rows[r]);
+						aggregators[i].add(exprs[i].accept(condExprInterpreter, envs[i]).getValue());
+					} catch(Exception exception) {
+						aggregators[i] = null;
+						failed[i] = true;
+					}
+				}
+			}
+			for(int i = 0; i < size; ++i) {
+				if(aggregators[i] == null)
+					continue;
+				try {
+					values[i] = aggregators[i].finish(envs[i]);
+				} catch(Exception exception) {
+					failed[i] = true;
+				}
+			}
+		}
+		List<QueryResult> results = new ArrayList<QueryResult>(size);
+		for(int i = 0; i < size; ++i) {
+			SelItem selItem = selItems.get(i);
+			if(failed[i])
+				results.add(null);
+			else if(selItem instanceof AliasedSelItemC)
+				results.add(new QueryResult(Attribute.of(((AliasedSelItemC)selItem).qident_), values[i]));
+			else
+				results.add(new QueryResult(values[i]));
+		}
+		return results;
+	}
+
+	private static CondExpr getCondExpr(SelItem selItem) {
+		if(selItem instanceof AliasedSelItemC)
+			return ((AliasedSelItemC)selItem).condexpr_;
+		return ((SelItemC)selItem).condexpr_;
+	}
+
 	public class ProgramInterpreter implements Program.Visitor<List<QueryResult>, ZMI> {
 		public List<QueryResult> visit(ProgramC program, ZMI zmi) {
 			List<QueryResult> results = new ArrayList<QueryResult>();
@@ -140,22 +250,28 @@ public class Interpreter {
 
 	public class StatementInterpreter implements Statement.Visitor<List<QueryResult>, ZMI> {
 		public List<QueryResult> visit(StatementC statement, ZMI zmi) {
+			// slots are local to the statement, a nested one is interpreted with slots of its own
+			IdentifierSlots slots = plan == null? IdentifierSlots.resolve(statement) : plan.getSlots(statement);
 			Table table = new Table(zmi);
 			try {
-				table = statement.where_.accept(new WhereInterpreter(), table);
+				table = statement.where_.accept(new WhereInterpreter(slots), table);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(statement.where_), exception);
 			}
 			try {
-				table = statement.orderby_.accept(new OrderByInterpreter(), table);
+				table = statement.orderby_.accept(new OrderByInterpreter(slots), table);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(statement.orderby_), exception);
 			}
 			List<QueryResult> ret = new ArrayList<QueryResult>();
+			List<QueryResult> fused = selectFused(statement.listselitem_, table, slots);
 
-			for(SelItem selItem : statement.listselitem_) {
+			for(int i = 0; i < statement.listselitem_.size(); ++i) {
+				SelItem selItem = statement.listselitem_.get(i);
 				try {
-					QueryResult qr = selItem.accept(new SelItemInterpreter(), table);
+					QueryResult qr = fused == null? null : fused.get(i);
+					if(qr == null)
+						qr = selItem.accept(new SelItemInterpreter(slots), table);
 					if(qr.getName() != null) {
 						for(QueryResult qrRet : ret)
 							if(qr.getName().getName().equals(qrRet.getName().getName()))
@@ -172,23 +288,37 @@ public class Interpreter {
 	}
 
 	public class WhereInterpreter implements Where.Visitor<Table, Table> {
+		private final IdentifierSlots slots;
+
+		public WhereInterpreter(IdentifierSlots slots) {
+			this.slots = slots;
+		}
+
 		public Table visit(NoWhereC where, Table table) {
 			return table;
 		}
 
 		public Table visit(WhereC where, Table table) {
 			Table result = new Table(table);
-			for(TableRow row : table) {
-				Environment env = new Environment(row, table.getColumns());
-				Value value = where.condexpr_.accept(new CondExprInterpreter(), env).getValue();
+			Environment env = new Environment(table, slots);
+			int[] rows = table.getRowIndices();
+			for(int i = 0; i < table.getRowCount(); ++i) {
+				env.setRow(rows[i]);
+				Value value = where.condexpr_.accept(condExprInterpreter, env).getValue();
 				if(getBoolean(value))
-					result.appendRow(row);
+					result.appendRowIndex(rows[i]);
 			}
 			return result;
 		}
 	}
 
 	public class OrderByInterpreter implements OrderBy.Visitor<Table, Table> {
+		private final IdentifierSlots slots;
+
+		public OrderByInterpreter(IdentifierSlots slots) {
+			this.slots = slots;
+		}
+
 		public Table visit(NoOrderByC orderBy, Table table) {
 			return table;
 		}
@@ -196,7 +326,7 @@ public class Interpreter {
 		public Table visit(OrderByC orderBy, Table table) {
 			for(OrderItem item : orderBy.listorderitem_) {
 				try {
-					table = item.accept(new OrderItemInterpreter(), table);
+					table = item.accept(new OrderItemInterpreter(slots), table);
 				} catch(Exception exception) {
 					throw new InsideQueryException(PrettyPrinter.print(item), exception);
 				}
@@ -206,18 +336,26 @@ public class Interpreter {
 	}
 
 	public class OrderItemInterpreter implements OrderItem.Visitor<Table, Table> {
+		private final IdentifierSlots slots;
+
+		public OrderItemInterpreter(IdentifierSlots slots) {
+			this.slots = slots;
+		}
+
 		public Table visit(final OrderItemC orderItem, final Table table) {
+			final Environment env1 = new Environment(table, slots);
+			final Environment env2 = new Environment(table, slots);
 			Comparator<TableRow> comparator = new Comparator<TableRow>() {
 				@Override
 				public int compare(TableRow row1, TableRow row2) {
-					Environment env1 = new Environment(row1, table.getColumns());
-					Result expr1 = orderItem.condexpr_.accept(new CondExprInterpreter(), env1);
-					Environment env2 = new Environment(row2, table.getColumns());
-					Result expr2 = orderItem.condexpr_.accept(new CondExprInterpreter(), env2);
+					env1.setRow(row1.getIndex());
+					Result expr1 = orderItem.condexpr_.accept(condExprInterpreter, env1);
+					env2.setRow(row2.getIndex());
+					Result expr2 = orderItem.condexpr_.accept(condExprInterpreter, env2);
 					ValuesPair pair = new ValuesPair(expr1, expr2);
-					int result = orderItem.nulls_.accept(new NullsInterpreter(), pair);
+					int result = orderItem.nulls_.accept(nullsInterpreter, pair);
 					if(result == 0)
-						result = orderItem.order_.accept(new OrderInterpreter(), pair);
+						result = orderItem.order_.accept(orderInterpreter, pair);
 					return result;
 				}
 			};
@@ -274,13 +412,23 @@ public class Interpreter {
 	}
 
 	public class SelItemInterpreter implements SelItem.Visitor<QueryResult, Table> {
+		private final IdentifierSlots slots;
+
+		public SelItemInterpreter(IdentifierSlots slots) {
+			this.slots = slots;
+		}
+
 		public QueryResult visit(SelItemC selItem, Table table) {
+			Value aggregated = aggregateColumn(selItem.condexpr_, table);
+			if(aggregated != null)
+				return new QueryResult(aggregated);
+
 			ValueList results = null;
-			Iterator<TableRow> iterator = table.iterator();
-			Environment env = null;
-			while (iterator.hasNext()) {
-				env = new Environment(iterator.next(), table.getColumns());
-				Result result = selItem.condexpr_.accept(new CondExprInterpreter(), env);
+			Environment env = new Environment(table, slots);
+			int[] rows = table.getRowIndices();
+			for(int i = 0; i < table.getRowCount(); ++i) {
+				env.setRow(rows[i]);
+				Result result = selItem.condexpr_.accept(condExprInterpreter, env);
 				if (results == null) {
 					results = new ValueList(result.getType());
 				}
@@ -305,12 +453,16 @@ public class Interpreter {
 		}
 
 		public QueryResult visit(AliasedSelItemC selItem, Table table) {
+			Value aggregated = aggregateColumn(selItem.condexpr_, table);
+			if(aggregated != null)
+				return new QueryResult(Attribute.of(selItem.qident_), aggregated);
+
 			ValueList results = null;
-			Iterator<TableRow> iterator = table.iterator();
-			Environment env = null;
-			while (iterator.hasNext()) {
-				env = new Environment(iterator.next(), table.getColumns());
-				Result result = selItem.condexpr_.accept(new CondExprInterpreter(), env);
+			Environment env = new Environment(table, slots);
+			int[] rows = table.getRowIndices();
+			for(int i = 0; i < table.getRowCount(); ++i) {
+				env.setRow(rows[i]);
+				Result result = selItem.condexpr_.accept(condExprInterpreter, env);
 				if (results == null) {
 					results = new ValueList(result.getType());
 				}
@@ -323,7 +475,7 @@ public class Interpreter {
 			ResultSingle finalResult = new ResultSingle(results);
 
 			if (env.aggregationFunctions.isEmpty()) {
-				return new QueryResult(new Attribute(selItem.qident_), results.get(0));
+				return new QueryResult(Attribute.of(selItem.qident_), results.get(0));
 			}
 
 			List arguments = new ArrayList<Result>();
@@ -332,16 +484,16 @@ public class Interpreter {
 			}
 			arguments.add(finalResult);
 			Result aggregatedResult = Functions.getInstance().evaluate((String) env.aggregationFunctions.pop(), arguments);
-			return new QueryResult(new Attribute(selItem.qident_), aggregatedResult.getValue());
+			return new QueryResult(Attribute.of(selItem.qident_), aggregatedResult.getValue());
 		}
 	}
 
 	public class BoolExprInterpreter implements BoolExpr.Visitor<Result, Environment> {
 		public Result visit(BoolExprCmpC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_1.accept(new BasicExprInterpreter(), env);
-				Result right = expr.basicexpr_2.accept(new BasicExprInterpreter(), env);
-				return expr.relop_.accept(new RelOpInterpreter(), new ValuesPair(left, right));
+				Result left = expr.basicexpr_1.accept(basicExprInterpreter, env);
+				Result right = expr.basicexpr_2.accept(basicExprInterpreter, env);
+				return expr.relop_.accept(relOpInterpreter, new ValuesPair(left, right));
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
 			}
@@ -349,7 +501,7 @@ public class Interpreter {
 
 		public Result visit(BoolExprRegExpC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_.accept(new BasicExprInterpreter(), env);
+				Result left = expr.basicexpr_.accept(basicExprInterpreter, env);
 				return (new ResultSingle(new ValueString(expr.string_))).regExpr(left);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -357,15 +509,15 @@ public class Interpreter {
 		}
 
 		public Result visit(BoolExprBasicExprC expr, Environment env) {
-			return expr.basicexpr_.accept(new BasicExprInterpreter(), env);
+			return expr.basicexpr_.accept(basicExprInterpreter, env);
 		}
 	}
 
 	public class CondExprInterpreter implements CondExpr.Visitor<Result, Environment> {
 		public Result visit(CondExprOrC expr, Environment env) {
 			try {
-				Result left = expr.condexpr_1.accept(new CondExprInterpreter(), env);
-				Result right = expr.condexpr_2.accept(new CondExprInterpreter(), env);
+				Result left = expr.condexpr_1.accept(condExprInterpreter, env);
+				Result right = expr.condexpr_2.accept(condExprInterpreter, env);
 				return left.or(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -374,8 +526,8 @@ public class Interpreter {
 
 		public Result visit(CondExprAndC expr, Environment env) {
 			try {
-				Result left = expr.condexpr_1.accept(new CondExprInterpreter(), env);
-				Result right = expr.condexpr_2.accept(new CondExprInterpreter(), env);
+				Result left = expr.condexpr_1.accept(condExprInterpreter, env);
+				Result right = expr.condexpr_2.accept(condExprInterpreter, env);
 				return left.and(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -384,22 +536,22 @@ public class Interpreter {
 
 		public Result visit(CondExprNotC expr, Environment env) {
 			try {
-				return expr.condexpr_.accept(new CondExprInterpreter(), env).negate();
+				return expr.condexpr_.accept(condExprInterpreter, env).negate();
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
 			}
 		}
 
 		public Result visit(CondExprBoolExprC expr, Environment env) {
-			return expr.boolexpr_.accept(new BoolExprInterpreter(), env);
+			return expr.boolexpr_.accept(boolExprInterpreter, env);
 		}
 	}
 
 	public class BasicExprInterpreter implements BasicExpr.Visitor<Result, Environment> {
 		public Result visit(BasicExprAddC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_1.accept(new BasicExprInterpreter(), env);
-				Result right = expr.basicexpr_2.accept(new BasicExprInterpreter(), env);
+				Result left = expr.basicexpr_1.accept(basicExprInterpreter, env);
+				Result right = expr.basicexpr_2.accept(basicExprInterpreter, env);
 				return left.addValue(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -408,8 +560,8 @@ public class Interpreter {
 
 		public Result visit(BasicExprSubC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_1.accept(new BasicExprInterpreter(), env);
-				Result right = expr.basicexpr_2.accept(new BasicExprInterpreter(), env);
+				Result left = expr.basicexpr_1.accept(basicExprInterpreter, env);
+				Result right = expr.basicexpr_2.accept(basicExprInterpreter, env);
 				return left.subtract(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -418,8 +570,8 @@ public class Interpreter {
 
 		public Result visit(BasicExprMulC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_1.accept(new BasicExprInterpreter(), env);
-				Result right = expr.basicexpr_2.accept(new BasicExprInterpreter(), env);
+				Result left = expr.basicexpr_1.accept(basicExprInterpreter, env);
+				Result right = expr.basicexpr_2.accept(basicExprInterpreter, env);
 				return left.multiply(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -428,8 +580,8 @@ public class Interpreter {
 
 		public Result visit(BasicExprDivC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_1.accept(new BasicExprInterpreter(), env);
-				Result right = expr.basicexpr_2.accept(new BasicExprInterpreter(), env);
+				Result left = expr.basicexpr_1.accept(basicExprInterpreter, env);
+				Result right = expr.basicexpr_2.accept(basicExprInterpreter, env);
 				return left.divide(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -438,8 +590,8 @@ public class Interpreter {
 
 		public Result visit(BasicExprModC expr, Environment env) {
 			try {
-				Result left = expr.basicexpr_1.accept(new BasicExprInterpreter(), env);
-				Result right = expr.basicexpr_2.accept(new BasicExprInterpreter(), env);
+				Result left = expr.basicexpr_1.accept(basicExprInterpreter, env);
+				Result right = expr.basicexpr_2.accept(basicExprInterpreter, env);
 				return left.modulo(right);
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
@@ -448,21 +600,21 @@ public class Interpreter {
 
 		public Result visit(BasicExprNegC expr, Environment env) {
 			try {
-				return expr.basicexpr_.accept(new BasicExprInterpreter(), env).negate();
+				return expr.basicexpr_.accept(basicExprInterpreter, env).negate();
 			} catch(Exception exception) {
 				throw new InsideQueryException(PrettyPrinter.print(expr), exception);
 			}
 		}
 
 		public Result visit(EIdentC expr, Environment env) {
-			return env.getIdent(expr.qident_);
+			return env.getIdent(expr);
 		}
 
 		public Result visit(EFunC expr, Environment env) {
 			try {
 				List<Result> arguments = new ArrayList<Result>(expr.listcondexpr_.size());
 				for(CondExpr arg : expr.listcondexpr_)
-					arguments.add(arg.accept(new CondExprInterpreter(), env));
+					arguments.add(arg.accept(condExprInterpreter, env));
 
 				if (Functions.getInstance().isAggregationFunction(expr.qident_)) {
 					env.aggregationFunctions.push(expr.qident_);
@@ -509,7 +661,7 @@ public class Interpreter {
 		}
 
 		public Result visit(ECondExprC expr, Environment env) {
-			return expr.condexpr_.accept(new CondExprInterpreter(), env);
+			return expr.condexpr_.accept(condExprInterpreter, env);
 		}
 
 		public ResultSingle visit(EStmtC expr, Environment env) {
@@ -0,0 +1,126 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EIdentC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.ProgramC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.Statement;
+import pl.edu.mimuw.cloudatlas.model.ValueBoolean;
+import pl.edu.mimuw.cloudatlas.model.ValueDouble;
+import pl.edu.mimuw.cloudatlas.model.ValueInt;
+import pl.edu.mimuw.cloudatlas.model.ValueString;
+import pl.edu.mimuw.cloudatlas.model.ZMI;
+
+/**
+ * Measures time and memory allocated by the interpreter per son of a wide zone. Run with an optional number of sons
+ * (10000 by default) and of iterations (50 by default):
+ * <pre>
+ * java -cp target/classes pl.edu.mimuw.cloudatlas.interpreter.InterpreterBenchmark 10000 50
+ * </pre>
+ * Table construction is reported separately, since every query builds a table of the zone first. Allocation is
+ * measured with the per-thread counters of HotSpot and reported as <code>n/a</code> on other virtual machines.
+ */
+public class InterpreterBenchmark {
+	private static final int ATTRIBUTES = 20;
+
+	private static final String[] QUERIES = {
+		"SELECT sum(num_cores) AS s",
+		"SELECT count(name) AS c WHERE num_cores > 8",
+		"SELECT avg(cpu_load) AS a, sum(num_cores) AS s, max(free_disk) AS m",
+		"SELECT sum(num_cores * 2) AS s, min(cpu_load + 1.0) AS m",
+		"SELECT avg(cpu_load * 2.0) AS a, sum(num_cores + 1) AS s, max(free_disk - 1) AS m, count(level) AS c",
+		"SELECT first(10, name) AS f ORDER BY cpu_load DESC",
+	};
+
+	public static void main(String[] args) throws Exception {
+		int sons = args.length > 0? Integer.parseInt(args[0]) : 10000;
+		int iterations = args.length > 1? Integer.parseInt(args[1]) : 50;
+		ZMI zone = createZone(sons);
+		System.out.println("Zone with " + sons + " sons, " + (ATTRIBUTES + 5) + " attributes each, " + iterations
+				+ " iterations");
+
+		measure("table construction", zone, iterations, () -> new Table(zone));
+		QueryPlan lookup = QueryPlan.compile("SELECT num_cores AS a, cpu_load AS b, name AS c");
+		// columns cache the results of their cells, so every iteration reads a new table, as every query does
+		measure("table construction and identifier lookup", zone, iterations,
+				() -> lookupIdentifiers(new Table(zone), lookup));
+		for(String query : QUERIES) {
+			QueryPlan plan = QueryPlan.compile(query);
+			measure(query, zone, iterations, () -> new Interpreter(zone).interpretPlan(plan));
+		}
+		System.exit(0);
+	}
+
+	// reads every identifier of the plan in every row of the table, as the interpreter does when evaluating
+	// expressions
+	private static Object lookupIdentifiers(Table table, QueryPlan plan) {
+		Statement statement = ((ProgramC)plan.getProgram()).liststatement_.get(0);
+		final List<EIdentC> idents = new ArrayList<EIdentC>();
+		new QueryWalker() {
+			@Override
+			protected void visitIdentifier(EIdentC expr) {
+				idents.add(expr);
+			}
+		}.walk(statement);
+
+		EIdentC[] identifiers = idents.toArray(new EIdentC[idents.size()]);
+		Environment env = new Environment(table, plan.getSlots(statement));
+		int[] rows = table.getRowIndices();
+		Object last = null;
+		for(int i = 0; i < table.getRowCount(); ++i) {
+			env.setRow(rows[i]);
+			for(EIdentC ident : identifiers)
+				last = env.getIdent(ident);
+		}
+		return last;
+	}
+
+	private interface Task {
+		Object run() throws Exception;
+	}
+
+	private static void measure(String name, ZMI zone, int iterations, Task task) throws Exception {
+		for(int i = 0; i < Math.max(5, iterations / 5); ++i)
+			task.run();
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; ++i)
+			task.run();
+		long time = System.nanoTime() - start;
+		long allocated = allocatedBytes() - bytes;
+		long rows = (long)iterations * zone.getSons().size();
+		System.out.println(String.format("%-100s %10.3f ms/query %12s B/son", name, time / 1e6 / iterations,
+				bytes < 0? "n/a" : String.format("%.1f", (double)allocated / rows)));
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private static ZMI createZone(int sons) {
+		Random random = new Random(42);
+		ZMI zone = new ZMI();
+		zone.getAttributes().add("level", new ValueInt(1l));
+		zone.getAttributes().add("name", new ValueString("rack"));
+		for(int i = 0; i < sons; ++i) {
+			ZMI son = new ZMI(zone);
+			zone.addSon(son);
+			son.getAttributes().add("level", new ValueInt(2l));
+			son.getAttributes().add("name", new ValueString("host" + i));
+			son.getAttributes().add("num_cores", new ValueInt((long)(1 + random.nextInt(32))));
+			son.getAttributes().add("cpu_load", random.nextInt(20) == 0? new ValueDouble(null) : new ValueDouble(
+					random.nextDouble()));
+			son.getAttributes().add("free_disk", new ValueInt(random.nextLong() >>> 24));
+			for(int j = 0; j < ATTRIBUTES; ++j)
+				son.getAttributes().add("extra" + j, j % 2 == 0? new ValueInt((long)j) : new ValueBoolean(j % 3 == 0));
+		}
+		return zone;
+	}
+}
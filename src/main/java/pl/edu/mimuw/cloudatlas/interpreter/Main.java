@@ -24,7 +24,6 @@
 
 package pl.edu.mimuw.cloudatlas.interpreter;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -34,22 +33,33 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import org.ini4j.Ini;
 import org.ini4j.IniPreferences;
-import pl.edu.mimuw.cloudatlas.interpreter.query.Yylex;
-import pl.edu.mimuw.cloudatlas.interpreter.query.parser;
 import pl.edu.mimuw.cloudatlas.model.*;
 import pl.edu.mimuw.cloudatlas.modules.communication.CommunicationClient;
 import pl.edu.mimuw.cloudatlas.modules.communication.CommunicationServer;
+import pl.edu.mimuw.cloudatlas.modules.communication.WireFormat;
+import pl.edu.mimuw.cloudatlas.modules.gossip.GossipModule;
+import pl.edu.mimuw.cloudatlas.modules.timer.TimerModule;
 
 public class Main {
 	public static ZMI root;
 	private static ZMI node;
-	private static HashMap<String, Timer> installedQueryTimers = new HashMap<>();
-	private static Timer gossipTimer = new Timer();
+	private static QueryPlanCache queryPlans = new QueryPlanCache();
+	private static ZoneEvaluator zoneEvaluator = new ZoneEvaluator(0);
+	private static QueryScheduler queryScheduler = new QueryScheduler(zoneEvaluator, 100);
+	private static Long queryInterval = 4000l;
+	private static Long queryJitter = 400l;
+	private static TimerModule timer = new TimerModule();
+	private static final Object zonesLock = new Object();
+	private static GossipModule gossip = new GossipModule();
 	private static GossipType gossipType = GossipType.RandomSameProbability;
+	private static Integer gossipBase = GossipLevelGenerator.DEFAULT_BASE;
+	private static ContactSelector contactSelector = new ContactSelector(ContactSelectionType.Random);
 	private static Long gossipPeriod = 5000l;
+	private static Integer mtu = WireFormat.DEFAULT_MTU;
 	private static java.util.prefs.Preferences prefs;
 
 	public static void main(String[] args) {
@@ -65,17 +75,17 @@ public class Main {
 			filepath = args[1];
 		}
 
-		CommunicationServer server = new CommunicationServer();
-		server.start(9876);
 		setupFromConfigurationFile("config.ini");
+		CommunicationServer server = new CommunicationServer(mtu, timer);
+		server.start(9876);
 		startGossiping(gossipType);
 	}
 
 	public static void initializeHierarchy() throws Exception {
 		root = createTestHierarchy();
-		CommunicationServer server = new CommunicationServer();
-		server.start(9876);
 		setupFromConfigurationFile("config.ini");
+		CommunicationServer server = new CommunicationServer(mtu, timer);
+		server.start(9876);
 		startGossiping(gossipType);
 	}
 
@@ -85,24 +95,40 @@ public class Main {
 
 	public static void startGossiping(GossipType type) {
 		// Random selection probability for all levels
-		GossipLevelGenerator generator = new GossipLevelGenerator(type, node.getNodeDepth());
-		gossipTimer.schedule(new TimerTask() {
+		GossipLevelGenerator generator = new GossipLevelGenerator(type, node.getNodeDepth(), gossipBase,
+				new SplittableRandom());
+		// every round schedules the next one when it is finished, so rounds never overlap
+		Callable<Void> round = new Callable<Void>() {
 			@Override
-			public void run() {
-				ValueContact contact = selectContact(root.getZMIWithLevel(generator.next()));
-				CommunicationClient client = new CommunicationClient();
-				String name = contact.getName().getSingletonName();
-				String ip = prefs.node("ip_addresses").get(name, "localhost");
-				System.out.println("Node selected: " + name + " ip: " + ip);
-				boolean isConnected = client.connectTo(ip);
-				if (isConnected) {
-					client.sendZMI(node);
+			public Void call() {
+				try {
+					gossipRound(generator);
+				} finally {
+					timer.schedule("gossip", gossipPeriod, this);
 				}
+				return null;
 			}
-		}, 0, gossipPeriod);
+		};
+		timer.schedule("gossip", 0, round);
 	}
 
-	public static ValueContact selectContact(ArrayList<ZMI> zmis) {
+	private static void gossipRound(GossipLevelGenerator generator) {
+		ValueContact contact = selectContact(root.getZMIWithLevel(generator.next()));
+		CommunicationClient client = new CommunicationClient();
+		String name = contact.getName().getSingletonName();
+		String ip = prefs.node("ip_addresses").get(name, "localhost");
+		System.out.println("Node selected: " + name + " ip: " + ip);
+		boolean isConnected = client.connectTo(ip);
+		if (isConnected) {
+			contactSelector.recordSuccess(contact, client.getRoundTripDelay());
+			// Both agents send only the zones, and their attributes, the other one does not know yet
+			gossip.offer(client);
+		} else {
+			contactSelector.recordFailure(contact);
+		}
+	}
+
+	public static ValueContact selectContact(List<ZMI> zmis) {
 		ArrayList<ValueContact> contacts = new ArrayList();
 		for (ZMI zmi: zmis) {
 			ValueSet zmiContacts = (ValueSet) zmi.getAttributes().getOrNull("contacts");
@@ -125,9 +151,7 @@ public class Main {
 				e.printStackTrace();
 			}
 		}
-		Integer randomIndex = (new Random()).nextInt(contacts.size());
-		randomIndex = randomIndex > 0 ? randomIndex - 1: randomIndex;
-		return contacts.get(randomIndex);
+		return contactSelector.select(contacts);
 	}
 
 	private static ArrayList<ValueContact> getFallbackContacts() throws UnknownHostException {
@@ -174,6 +198,20 @@ public class Main {
 		IniPreferences gossipPrefs = new IniPreferences(gossip);
 		gossipType = GossipType.fromString(gossipPrefs.node("gossip_option").get("option", "RSP"));
 		gossipPeriod = gossipPrefs.node("gossip_option").getLong("interval", 5000);
+		gossipBase = gossipPrefs.node("gossip_option").getInt("base", GossipLevelGenerator.DEFAULT_BASE);
+		contactSelector = new ContactSelector(ContactSelectionType.fromString(
+				gossipPrefs.node("gossip_option").get("contacts", "RANDOM")));
+		int parallelism = prefs.node("queries").getInt("parallelism", 0);
+		if (parallelism > 0 && parallelism != zoneEvaluator.getParallelism()) {
+			ZoneEvaluator previous = zoneEvaluator;
+			zoneEvaluator = new ZoneEvaluator(parallelism);
+			queryScheduler.setEvaluator(zoneEvaluator);
+			previous.shutdown();
+		}
+		queryInterval = prefs.node("queries").getLong("interval", 4000);
+		queryJitter = prefs.node("queries").getLong("jitter", 400);
+		mtu = prefs.node("communication").getInt("mtu", WireFormat.DEFAULT_MTU);
+		CommunicationClient.setMtu(mtu);
 	}
 
 	// Will start interpreter with the queries in file, will install queries to the root node
@@ -201,6 +239,7 @@ public class Main {
 		return pathName;
 	}
 
+	// Changed attributes mark the zone, so installed queries are evaluated again in zones above it
 	public static void updateZMIAttributes(String zmiPath, Map<String, Object> attributeMap) {
 		ZMI zmi = root.sonForPath(zmiPath);
 		if (zmi != null) {
@@ -226,102 +265,172 @@ public class Main {
 	}
 
 	public static void updateZMIAttributes(ZMI newZMI) {
-		ZMI zmi = root.sonForPath(getPathName(newZMI).getName());
-		if (zmi != null) {
-			AttributesMap attributesMap = newZMI.getAttributes();
-			for (Map.Entry<Attribute, Value> entry: attributesMap) {
-				List<String> queries = new ArrayList<>();
-				if (entry.getValue().getType().getPrimaryType() == Type.PrimaryType.LIST) {
-					ValueList list = (ValueList) entry.getValue();
-					if (list.getValue().size() > 0 && list.getValue().get(0).getClass() == ValueQuery.class) {
-						for (Value str: list.getValue()) {
-							queries.add(((ValueString)str).getValue());
-						}
-						// Uninstall active queries before installing new updated ZMI queries
-						uninstallQuery(zmi, entry.getKey().getName());
+		updateZMIAttributes(newZMI, 0);
+	}
 
-						installQuery(zmi, entry.getKey().getName(), queries.toArray(new String[queries.size()]));
-					}
-				}
-				else {
-					if (entry.getKey().toString().equals("name") || entry.getKey().toString().equals("owner")) {
+	// Timestamps of a ZMI sent by an agent whose clock is ahead by clockOffset milliseconds are converted to local time
+	public static void updateZMIAttributes(ZMI newZMI, long clockOffset) {
+		mergeZMIAttributes(getPathName(newZMI).getName(), GossipModule.toLocalTime(newZMI.getAttributes(), clockOffset));
+	}
+
+	// Applies attributes received from another agent, values older than the ones already known are ignored
+	public static void mergeZMIAttributes(String zmiPath, AttributesMap attributesMap) {
+		mergeZones(Collections.singletonMap(zmiPath, attributesMap));
+	}
+
+	// Applies zones received from another agent by their paths, each found in time proportional to its depth
+	public static void mergeZones(Map<String, AttributesMap> zones) {
+		List<String> paths = new ArrayList<>(zones.keySet());
+		// Fathers of new zones are created before their sons
+		paths.sort(Comparator.comparingInt(path -> new PathName(path).getComponents().size()));
+		for (String path: paths) {
+			PathName pathName = new PathName(path);
+			ZMI zmi = root.sonForPath(pathName);
+			if (zmi == null) {
+				zmi = createZMI(pathName);
+			}
+			if (zmi != null) {
+				mergeAttributes(zmi, zones.get(path));
+			}
+			System.out.println("Updated: " + path);
+		}
+	}
 
+	private static void mergeAttributes(ZMI zmi, AttributesMap attributesMap) {
+		for (Map.Entry<Attribute, Value> entry: attributesMap) {
+			List<String> queries = new ArrayList<>();
+			if (entry.getValue().getType().getPrimaryType() == Type.PrimaryType.LIST) {
+				ValueList list = (ValueList) entry.getValue();
+				if (!list.isNull() && list.getValue().size() > 0
+						&& list.getValue().get(0).getClass() == ValueQuery.class) {
+					for (Value str: list.getValue()) {
+						queries.add(((ValueString)str).getValue());
 					}
-					else {
-						zmi.getAttributes().addOrChange(entry.getKey(), entry.getValue());
+					String[] received = queries.toArray(new String[queries.size()]);
+					// Reinstall only changed queries, gossip messages usually repeat the installed ones
+					if (!Arrays.equals(received, queryScheduler.getQueries(entry.getKey().getName()))) {
+						uninstallQuery(zmi, entry.getKey().getName());
+						installQuery(zmi, entry.getKey().getName(), received);
 					}
 				}
 			}
+			else {
+				if (entry.getKey().toString().equals("name") || entry.getKey().toString().equals("owner")) {
+
+				}
+				else {
+					zmi.getAttributes().addOrChange(entry.getKey(), entry.getValue(),
+							attributesMap.getVersion(entry.getKey()));
+				}
+			}
 		}
+	}
 
-		System.out.println("Updated: " + getPathName(zmi).getName());
+	// Creates a zone learned from another agent, if its father is known
+	private static ZMI createZMI(PathName path) {
+		if (path.getComponents().isEmpty()) {
+			return null;
+		}
+		// Zones arrive from many threads, the same zone must not be added twice
+		synchronized (zonesLock) {
+			ZMI existing = root.sonForPath(path);
+			if (existing != null) {
+				return existing;
+			}
+			ZMI father = root.sonForPath(path.levelUp());
+			if (father == null) {
+				return null;
+			}
+			// The oldest version, so the received attributes are not taken for fresher local ones
+			ZMI zmi = new ZMI(father);
+			zmi.getAttributes().addOrChange(Attribute.of("level"), new ValueInt(path.getComponents().size() + 0l), 1);
+			zmi.getAttributes().addOrChange(Attribute.of("name"), new ValueString(path.getSingletonName()), 1);
+			zmi.getAttributes().addOrChange(Attribute.of("owner"), new ValueString(path.getName()), 1);
+			father.addSon(zmi);
+			return zmi;
+		}
+	}
+
+	public static void receiveGossip(byte[] message, InetAddress sender) {
+		gossip.receive(message, sender);
 	}
 
 	public static HashMap<String, Value> executeQueries(ZMI zmi, String query) throws Exception {
-		if(!zmi.getSons().isEmpty()) {
-			HashMap attributeMap = new HashMap<Attribute, Value>();
-			for(ZMI son : zmi.getSons()) {
-				HashMap<String, Value> sonResult = executeQueries(son, query);
-				if (sonResult != null) {
-					attributeMap.putAll(sonResult);
-				}
-			}
+		QueryPlan plan;
+		try {
+			plan = QueryPlan.compile(query);
+		} catch(InterpreterException exception) {
+			return reportError(zmi, exception.getMessage());
+		}
+		return executeQueries(zmi, plan);
+	}
 
-			Interpreter interpreter = new Interpreter(zmi);
-			Yylex lex = new Yylex(new ByteArrayInputStream(query.getBytes()));
-			try {
-				List<QueryResult> result = interpreter.interpretProgram((new parser(lex)).pProgram());
-				PathName zone = getPathName(zmi);
-				for(QueryResult r : result) {
-					System.out.println(zone + ": " + r);
-					attributeMap.put(zone + ": " + r.getName(), r.getValue());
-					zmi.getAttributes().addOrChange(r.getName(), r.getValue());
-				}
-				return attributeMap;
-			} catch(InterpreterException exception) {
-				System.out.println(exception.getMessage());
-				attributeMap.clear();
-				attributeMap.put("Error in ZMI " + getPathName(zmi) + ":", new ValueString(exception.getMessage()));
-				return attributeMap;
-			}
+	// An invalid query fails in every zone it is executed in, reported as an error in the outermost one
+	private static HashMap<String, Value> reportError(ZMI zmi, String message) {
+		if (zmi.getSons().isEmpty()) {
+			return null;
+		}
+		for (ZMI son: zmi.getSons()) {
+			reportError(son, message);
 		}
-		return null;
+		System.out.println(message);
+		HashMap<String, Value> attributeMap = new HashMap<>();
+		attributeMap.put("Error in ZMI " + getPathName(zmi) + ":", new ValueString(message));
+		return attributeMap;
+	}
+
+	public static HashMap<String, Value> executeQueries(ZMI zmi, QueryPlan plan) {
+		return zoneEvaluator.evaluate(zmi, plan);
 	}
 
 	public static void installQuery(ZMI zmi, String attributeName, String[] queries) {
+		installQuery(zmi, attributeName, queries, queryInterval);
+	}
+
+	public static void installQuery(ZMI zmi, String attributeName, String[] queries, long interval) {
 		ValueList queryValues = new ValueList(TypePrimitive.STRING);
+		List<String> compiled = new ArrayList<>();
+		List<QueryPlan> plans = new ArrayList<>();
 		for (String query: queries) {
 			try {
 				queryValues.add(new ValueQuery(query));
+				// Parse and validate once, installed queries are executed from the cached plan
+				plans.add(queryPlans.acquire(query));
+				compiled.add(query);
 			} catch (Exception e) {
 				System.out.println(e.getMessage());
 			}
 		}
+		String[] installed = compiled.toArray(new String[compiled.size()]);
+		String[] replaced;
+		try {
+			replaced = queryScheduler.install(attributeName, zmi, installed, plans, interval,
+					Math.min(queryJitter, interval / 2));
+		} catch (IllegalArgumentException e) {
+			releasePlans(installed);
+			throw e;
+		}
+		// The attribute may be installed again without uninstalling it first, e.g. by a client
+		if (replaced != null) {
+			releasePlans(replaced);
+		}
 		zmi.getAttributes().addOrChange(attributeName, queryValues);
 		System.out.println("Query installed: " + attributeName);
-		Timer timer = new Timer();
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				for (String query: queries) {
-					try {
-						executeQueries(zmi, query);
-					} catch (Exception e) {
+	}
 
-					}
-				}
-			}
-		}, 0, 4000);
-		installedQueryTimers.put(attributeName, timer);
+	// Plans are shared by attributes with the same queries, they are removed with the last one
+	private static void releasePlans(String[] queries) {
+		for (String query: queries) {
+			queryPlans.release(query);
+		}
 	}
 
 	public static String uninstallQuery(ZMI zmi, String attributeName) {
-		Timer timer = installedQueryTimers.get(attributeName);
-		if (timer == null) {
+		String[] queries = queryScheduler.uninstall(attributeName);
+		if (queries == null) {
 			return "No such attribute";
 		}
-		timer.cancel();
-		installedQueryTimers.remove(attributeName);
+		releasePlans(queries);
 		zmi.removeAttribute(attributeName);
 		System.out.println("Query uninstalled: " + attributeName);
 		return "Attribute " + attributeName + " was removed";
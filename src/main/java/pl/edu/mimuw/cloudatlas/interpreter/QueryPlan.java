@@ -0,0 +1,180 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import pl.edu.mimuw.cloudatlas.interpreter.query.PrettyPrinter;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Yylex;
+import pl.edu.mimuw.cloudatlas.interpreter.query.parser;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.AliasedSelItemC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EFunC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderByC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderItem;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderItemC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.Program;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.ProgramC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.SelItem;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.SelItemC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.Statement;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.StatementC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.WhereC;
+
+/**
+ * A query parsed and validated once, so that it can be executed by an {@link Interpreter} on any number of zones
+ * without touching the parser again. Checks that do not depend on zone contents (aliases of top-level items, function
+ * names) are performed when the plan is compiled.
+ * <p>
+ * A plan also knows whether the query calls functions whose results do not depend on the zone only, such as
+ * <code>now()</code> or <code>random()</code>. Such a query may yield a new result even if no attribute changed.
+ * <p>
+ * This class is immutable, so a single plan may be shared by many threads.
+ */
+public class QueryPlan {
+	private final String query;
+	private final Program program;
+	private final Map<Statement, IdentifierSlots> slots = new IdentityHashMap<Statement, IdentifierSlots>();
+	private final boolean deterministic;
+
+	private QueryPlan(String query, Program program) {
+		this.query = query;
+		this.program = program;
+		DeterminismChecker checker = new DeterminismChecker();
+		for(Statement statement : ((ProgramC)program).liststatement_) {
+			slots.putAll(IdentifierSlots.resolveAll(statement));
+			checker.walk(statement);
+		}
+		this.deterministic = checker.deterministic;
+	}
+
+	/**
+	 * Parses and validates the specified query.
+	 *
+	 * @param query text of the query, possibly containing several statements separated by semicolons
+	 * @return a plan ready for execution
+	 * @throws InterpreterException if the query is syntactically correct, but invalid
+	 * @throws Exception if the query cannot be parsed
+	 */
+	public static QueryPlan compile(String query) throws Exception {
+		Yylex lex = new Yylex(new ByteArrayInputStream(query.getBytes()));
+		return compile(query, (new parser(lex)).pProgram());
+	}
+
+	/**
+	 * Validates an already parsed program.
+	 *
+	 * @param program the program to validate
+	 * @return a plan ready for execution
+	 * @throws InterpreterException if the program is invalid
+	 */
+	public static QueryPlan compile(Program program) {
+		return compile(PrettyPrinter.print(program), program);
+	}
+
+	private static QueryPlan compile(String query, Program program) {
+		for(Statement statement : ((ProgramC)program).liststatement_) {
+			try {
+				check((StatementC)statement);
+			} catch(Exception exception) {
+				throw new InsideQueryException(PrettyPrinter.print(statement), exception);
+			}
+		}
+		return new QueryPlan(query, program);
+	}
+
+	// errors are reported in the same clauses and items in which the interpreter would report them
+	private static void check(StatementC statement) {
+		FunctionChecker checker = new FunctionChecker();
+		if(statement.where_ instanceof WhereC)
+			try {
+				checker.walk(((WhereC)statement.where_).condexpr_);
+			} catch(Exception exception) {
+				throw new InsideQueryException(PrettyPrinter.print(statement.where_), exception);
+			}
+		if(statement.orderby_ instanceof OrderByC)
+			for(OrderItem item : ((OrderByC)statement.orderby_).listorderitem_)
+				try {
+					checker.walk(((OrderItemC)item).condexpr_);
+				} catch(Exception exception) {
+					throw new InsideQueryException(PrettyPrinter.print(item), exception);
+				}
+		Set<String> aliases = new HashSet<String>();
+		boolean aliased = true;
+		for(SelItem selItem : statement.listselitem_) {
+			try {
+				if(selItem instanceof AliasedSelItemC) {
+					checker.walk(((AliasedSelItemC)selItem).condexpr_);
+					if(!aliases.add(((AliasedSelItemC)selItem).qident_))
+						throw new IllegalArgumentException("Alias collision.");
+				} else {
+					checker.walk(((SelItemC)selItem).condexpr_);
+					aliased = false;
+				}
+			} catch(Exception exception) {
+				throw new InsideQueryException(PrettyPrinter.print(selItem), exception);
+			}
+		}
+		if(!aliased)
+			throw new IllegalArgumentException("All items in top-level SELECT must be aliased.");
+	}
+
+	private static class FunctionChecker extends QueryWalker {
+		@Override
+		protected void visitFunction(EFunC expr) {
+			if(!Functions.getInstance().isFunction(expr.qident_))
+				throw new InsideQueryException(PrettyPrinter.print(expr), new IllegalArgumentException(
+						"Illegal function name."));
+		}
+	}
+
+	private static class DeterminismChecker extends QueryWalker {
+		private boolean deterministic = true;
+
+		@Override
+		protected void visitFunction(EFunC expr) {
+			if(!Functions.getInstance().isDeterministic(expr.qident_))
+				deterministic = false;
+		}
+	}
+
+	/**
+	 * Gets the text this plan was compiled from.
+	 *
+	 * @return the query text
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Gets the parsed program.
+	 *
+	 * @return the abstract syntax tree of the query
+	 */
+	public Program getProgram() {
+		return program;
+	}
+
+	/**
+	 * Checks whether the query always yields the same result for the same attributes of sons.
+	 *
+	 * @return <code>false</code> if the query calls a non-deterministic function, e.g. <code>now()</code>
+	 */
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	// attribute names referenced by a statement of the query, nested ones included, numbered once for all executions
+	// of the plan
+	IdentifierSlots getSlots(Statement statement) {
+		IdentifierSlots result = slots.get(statement);
+		return result == null? IdentifierSlots.resolve(statement) : result;
+	}
+
+	@Override
+	public String toString() {
+		return query;
+	}
+}
@@ -0,0 +1,56 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled plans of installed queries, keyed by the query text. Attributes installing the same query share its plan,
+ * which is kept until all of them release it. Safe to use from many threads.
+ */
+public class QueryPlanCache {
+	private final Map<String, Entry> plans = new HashMap<String, Entry>();
+
+	private static class Entry {
+		final QueryPlan plan;
+		int references;
+
+		Entry(QueryPlan plan) {
+			this.plan = plan;
+		}
+	}
+
+	/**
+	 * Gets a plan for the specified query, compiling it if it is not cached yet. Every successful call must be matched
+	 * by a call of {@link #release(String)}.
+	 *
+	 * @param query text of the query
+	 * @return a compiled plan
+	 * @throws Exception if the query cannot be compiled
+	 * @see QueryPlan#compile(String)
+	 */
+	public synchronized QueryPlan acquire(String query) throws Exception {
+		Entry entry = plans.get(query);
+		if(entry == null) {
+			entry = new Entry(QueryPlan.compile(query));
+			plans.put(query, entry);
+		}
+		entry.references++;
+		return entry.plan;
+	}
+
+	/**
+	 * Releases a plan of the specified query, removing it from the cache when no installed query uses it any more.
+	 * Does nothing if the query is not cached, for instance because it failed to compile.
+	 *
+	 * @param query text of the query
+	 */
+	public synchronized void release(String query) {
+		Entry entry = plans.get(query);
+		if(entry != null && --entry.references == 0)
+			plans.remove(query);
+	}
+
+	public synchronized int size() {
+		return plans.size();
+	}
+}
@@ -0,0 +1,168 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import pl.edu.mimuw.cloudatlas.model.ZMI;
+
+/**
+ * Periodically executes installed queries. A single thread checks every tick which queries are due and executes all
+ * the due queries installed in the same zone in one traversal of its subtree, on the threads of a
+ * {@link ZoneEvaluator}. Queries are executed {@link ZoneEvaluator#evaluateChanged(ZMI, List, List) incrementally}.
+ * <p>
+ * Every installed attribute has its own interval. The time to its next execution is the interval shifted by a random
+ * jitter, so that queries installed at the same moment, e.g. by a gossip message, do not stay in step.
+ */
+public class QueryScheduler {
+	private final ScheduledExecutorService executor;
+	private final Map<String, Installation> installations = new ConcurrentHashMap<String, Installation>();
+	private volatile ZoneEvaluator evaluator;
+
+	/**
+	 * Creates a scheduler and starts its thread.
+	 *
+	 * @param evaluator the evaluator executing the queries
+	 * @param tick period in milliseconds of checking for due queries, which is the precision of the intervals
+	 */
+	public QueryScheduler(ZoneEvaluator evaluator, long tick) {
+		if(tick <= 0)
+			throw new IllegalArgumentException("The tick must be positive, got " + tick + ".");
+		this.evaluator = evaluator;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "query-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+		this.executor = executor;
+	}
+
+	public void setEvaluator(ZoneEvaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * Installs queries computing the specified attribute in the subtree of <code>zmi</code>, replacing the queries
+	 * previously installed for this attribute. The queries are first executed in the next tick.
+	 *
+	 * @param attribute name of the installed attribute
+	 * @param zmi the root of the subtree
+	 * @param queries texts of the queries, used to report them by {@link #getQueries(String)}
+	 * @param plans compiled queries to execute, in order
+	 * @param interval time in milliseconds between executions
+	 * @param jitter the maximal random shift in milliseconds of every execution
+	 * @return the replaced queries or <code>null</code> if the attribute was not installed
+	 */
+	public String[] install(String attribute, ZMI zmi, String[] queries, List<QueryPlan> plans, long interval,
+			long jitter) {
+		if(interval <= 0)
+			throw new IllegalArgumentException("The interval must be positive, got " + interval + ".");
+		if(jitter < 0 || jitter >= interval)
+			throw new IllegalArgumentException("The jitter must be in range [0, " + interval + "), got " + jitter + ".");
+		Installation replaced = installations.put(attribute, new Installation(zmi, queries, plans, interval, jitter));
+		return replaced == null? null : replaced.queries.clone();
+	}
+
+	/**
+	 * Stops executing queries of the specified attribute.
+	 *
+	 * @param attribute name of the installed attribute
+	 * @return the uninstalled queries or <code>null</code> if the attribute was not installed
+	 */
+	public String[] uninstall(String attribute) {
+		Installation installation = installations.remove(attribute);
+		return installation == null? null : installation.queries.clone();
+	}
+
+	/**
+	 * Gets the queries installed for the specified attribute.
+	 *
+	 * @param attribute name of the installed attribute
+	 * @return the installed queries or <code>null</code> if the attribute is not installed
+	 */
+	public String[] getQueries(String attribute) {
+		Installation installation = installations.get(attribute);
+		return installation == null? null : installation.queries.clone();
+	}
+
+	public int size() {
+		return installations.size();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private void tick() {
+		long now = System.nanoTime();
+		Map<ZMI, List<Installation>> due = new IdentityHashMap<ZMI, List<Installation>>();
+		for(Installation installation : installations.values())
+			if(installation.next - now <= 0) {
+				List<Installation> zone = due.get(installation.zmi);
+				if(zone == null) {
+					zone = new ArrayList<Installation>();
+					due.put(installation.zmi, zone);
+				}
+				zone.add(installation);
+				installation.reschedule(now);
+			}
+
+		ZoneEvaluator evaluator = this.evaluator;
+		for(Map.Entry<ZMI, List<Installation>> zone : due.entrySet()) {
+			List<QueryPlan> plans = new ArrayList<QueryPlan>();
+			List<Map<ZMI, Long>> evaluated = new ArrayList<Map<ZMI, Long>>();
+			for(Installation installation : zone.getValue()) {
+				plans.addAll(installation.plans);
+				evaluated.addAll(installation.evaluated);
+			}
+			try {
+				evaluator.evaluateChanged(zone.getKey(), plans, evaluated);
+			} catch(RuntimeException exception) {
+				// an exception must not stop the scheduler thread
+				exception.printStackTrace();
+			}
+		}
+	}
+
+	private static class Installation {
+		private final ZMI zmi;
+		private final String[] queries;
+		private final List<QueryPlan> plans;
+		// versions of zones as of the last evaluation of every query, zones removed from the tree are forgotten
+		private final List<Map<ZMI, Long>> evaluated;
+		private final long interval;
+		private final long jitter;
+		// accessed only by the scheduler thread
+		private long next;
+
+		Installation(ZMI zmi, String[] queries, List<QueryPlan> plans, long interval, long jitter) {
+			this.zmi = zmi;
+			this.queries = Arrays.copyOf(queries, queries.length);
+			this.plans = new ArrayList<QueryPlan>(plans);
+			this.evaluated = new ArrayList<Map<ZMI, Long>>(plans.size());
+			for(int i = 0; i < plans.size(); ++i)
+				evaluated.add(Collections.synchronizedMap(new WeakHashMap<ZMI, Long>()));
+			this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+			this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+			this.next = System.nanoTime();
+		}
+
+		void reschedule(long now) {
+			long shift = jitter == 0? 0 : ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+			next += interval + shift;
+			// an execution late by more than an interval is not repeated to catch up
+			if(next - now <= 0)
+				next = now + interval + shift;
+		}
+	}
+}
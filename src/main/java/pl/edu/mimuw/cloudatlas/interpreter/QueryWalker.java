@@ -0,0 +1,197 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.AliasedSelItemC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExpr;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExprAddC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExprDivC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExprModC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExprMulC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExprNegC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BasicExprSubC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BoolExpr;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BoolExprBasicExprC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BoolExprCmpC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.BoolExprRegExpC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.CondExpr;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.CondExprAndC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.CondExprBoolExprC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.CondExprNotC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.CondExprOrC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EBoolC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.ECondExprC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EDblC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EFunC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EIdentC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EIntC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EStmtC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.EStrC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.NoOrderByC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.NoWhereC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderBy;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderByC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderItem;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.OrderItemC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.SelItem;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.SelItemC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.Statement;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.StatementC;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.Where;
+import pl.edu.mimuw.cloudatlas.interpreter.query.Absyn.WhereC;
+
+// walks a statement in the same order in which Interpreter evaluates it; subclasses override the hooks they need
+abstract class QueryWalker implements Statement.Visitor<Void, Void>, Where.Visitor<Void, Void>,
+		OrderBy.Visitor<Void, Void>, OrderItem.Visitor<Void, Void>, SelItem.Visitor<Void, Void>,
+		CondExpr.Visitor<Void, Void>, BoolExpr.Visitor<Void, Void>, BasicExpr.Visitor<Void, Void> {
+	protected void enterStatement(StatementC statement) {}
+
+	protected void exitStatement(StatementC statement) {}
+
+	protected void visitIdentifier(EIdentC expr) {}
+
+	// called after all the arguments of the function have been walked
+	protected void visitFunction(EFunC expr) {}
+
+	public void walk(Statement statement) {
+		statement.accept(this, null);
+	}
+
+	public void walk(CondExpr expr) {
+		expr.accept(this, null);
+	}
+
+	public Void visit(StatementC statement, Void arg) {
+		enterStatement(statement);
+		statement.where_.accept(this, arg);
+		statement.orderby_.accept(this, arg);
+		for(SelItem selItem : statement.listselitem_)
+			selItem.accept(this, arg);
+		exitStatement(statement);
+		return null;
+	}
+
+	public Void visit(NoWhereC where, Void arg) {
+		return null;
+	}
+
+	public Void visit(WhereC where, Void arg) {
+		return where.condexpr_.accept(this, arg);
+	}
+
+	public Void visit(NoOrderByC orderBy, Void arg) {
+		return null;
+	}
+
+	public Void visit(OrderByC orderBy, Void arg) {
+		for(OrderItem item : orderBy.listorderitem_)
+			item.accept(this, arg);
+		return null;
+	}
+
+	public Void visit(OrderItemC orderItem, Void arg) {
+		return orderItem.condexpr_.accept(this, arg);
+	}
+
+	public Void visit(SelItemC selItem, Void arg) {
+		return selItem.condexpr_.accept(this, arg);
+	}
+
+	public Void visit(AliasedSelItemC selItem, Void arg) {
+		return selItem.condexpr_.accept(this, arg);
+	}
+
+	public Void visit(CondExprOrC expr, Void arg) {
+		expr.condexpr_1.accept(this, arg);
+		return expr.condexpr_2.accept(this, arg);
+	}
+
+	public Void visit(CondExprAndC expr, Void arg) {
+		expr.condexpr_1.accept(this, arg);
+		return expr.condexpr_2.accept(this, arg);
+	}
+
+	public Void visit(CondExprNotC expr, Void arg) {
+		return expr.condexpr_.accept(this, arg);
+	}
+
+	public Void visit(CondExprBoolExprC expr, Void arg) {
+		return expr.boolexpr_.accept(this, arg);
+	}
+
+	public Void visit(BoolExprCmpC expr, Void arg) {
+		expr.basicexpr_1.accept(this, arg);
+		return expr.basicexpr_2.accept(this, arg);
+	}
+
+	public Void visit(BoolExprRegExpC expr, Void arg) {
+		return expr.basicexpr_.accept(this, arg);
+	}
+
+	public Void visit(BoolExprBasicExprC expr, Void arg) {
+		return expr.basicexpr_.accept(this, arg);
+	}
+
+	public Void visit(BasicExprAddC expr, Void arg) {
+		expr.basicexpr_1.accept(this, arg);
+		return expr.basicexpr_2.accept(this, arg);
+	}
+
+	public Void visit(BasicExprSubC expr, Void arg) {
+		expr.basicexpr_1.accept(this, arg);
+		return expr.basicexpr_2.accept(this, arg);
+	}
+
+	public Void visit(BasicExprMulC expr, Void arg) {
+		expr.basicexpr_1.accept(this, arg);
+		return expr.basicexpr_2.accept(this, arg);
+	}
+
+	public Void visit(BasicExprDivC expr, Void arg) {
+		expr.basicexpr_1.accept(this, arg);
+		return expr.basicexpr_2.accept(this, arg);
+	}
+
+	public Void visit(BasicExprModC expr, Void arg) {
+		expr.basicexpr_1.accept(this, arg);
+		return expr.basicexpr_2.accept(this, arg);
+	}
+
+	public Void visit(BasicExprNegC expr, Void arg) {
+		return expr.basicexpr_.accept(this, arg);
+	}
+
+	public Void visit(EIdentC expr, Void arg) {
+		visitIdentifier(expr);
+		return null;
+	}
+
+	public Void visit(EFunC expr, Void arg) {
+		for(CondExpr argument : expr.listcondexpr_)
+			argument.accept(this, arg);
+		visitFunction(expr);
+		return null;
+	}
+
+	public Void visit(EStrC expr, Void arg) {
+		return null;
+	}
+
+	public Void visit(EBoolC expr, Void arg) {
+		return null;
+	}
+
+	public Void visit(EIntC expr, Void arg) {
+		return null;
+	}
+
+	public Void visit(EDblC expr, Void arg) {
+		return null;
+	}
+
+	public Void visit(ECondExprC expr, Void arg) {
+		return expr.condexpr_.accept(this, arg);
+	}
+
+	public Void visit(EStmtC expr, Void arg) {
+		return expr.statement_.accept(this, arg);
+	}
+}
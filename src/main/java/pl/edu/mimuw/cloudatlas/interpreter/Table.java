@@ -25,6 +25,7 @@
 package pl.edu.mimuw.cloudatlas.interpreter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -32,6 +33,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Map.Entry;
 
@@ -40,13 +42,16 @@ import pl.edu.mimuw.cloudatlas.model.Type;
 import pl.edu.mimuw.cloudatlas.model.TypeCollection;
 import pl.edu.mimuw.cloudatlas.model.Value;
 import pl.edu.mimuw.cloudatlas.model.ValueList;
-import pl.edu.mimuw.cloudatlas.model.ValueNull;
 import pl.edu.mimuw.cloudatlas.model.ZMI;
 
+// values are kept column by column; tables derived from the same ZMI share columns and differ only in the selected
+// rows and their order
 public class Table implements Iterable<TableRow> {
 	private final List<String> columns = new ArrayList<String>();
 	private final Map<String, Integer> headersMap = new HashMap<String, Integer>();
-	private final List<TableRow> rows = new ArrayList<TableRow>();
+	private final Column[] data;
+	private int[] rows;
+	private int rowCount = 0;
 
 	// creates whole table based on a given ZMI
 	public Table(ZMI zmi) {
@@ -59,31 +64,49 @@ public class Table implements Iterable<TableRow> {
 		int i = 0;
 		for(String c : columns)
 			headersMap.put(c, i++);
-		for(ZMI z : zmi.getSons()) {
-			Value[] row = new Value[columns.size()];
-			for(int j = 0; j < row.length; ++j)
-				row[j] = ValueNull.getInstance();
-			for(Entry<Attribute, Value> e : z.getAttributes())
-				row[getColumnIndex(e.getKey().getName())] = e.getValue();
-			appendRow(new TableRow(row));
-		}
+
+		List<ZMI> sons = zmi.getSons();
+		Value[][] cells = new Value[columns.size()][sons.size()];
+		for(int j = 0; j < sons.size(); ++j)
+			for(Entry<Attribute, Value> e : sons.get(j).getAttributes())
+				cells[getColumnIndex(e.getKey().getName())][j] = e.getValue();
+		data = new Column[columns.size()];
+		for(int c = 0; c < data.length; ++c)
+			data[c] = Column.create(cells[c]);
+
+		rows = new int[sons.size()];
+		for(int j = 0; j < rows.length; ++j)
+			rows[j] = j;
+		rowCount = rows.length;
 	}
 
 	// creates an empty table with same columns as given
 	public Table(Table table) {
 		this.columns.addAll(table.columns);
 		this.headersMap.putAll(table.headersMap);
+		this.data = table.data;
+		this.rows = new int[table.rowCount];
 	}
 
 	public List<String> getColumns() {
 		return Collections.unmodifiableList(columns);
 	}
 
+	// the row must come from this table or a table sharing its columns
 	public void appendRow(TableRow row) {
 		if(row.getSize() != columns.size())
 			throw new InternalInterpreterException("Cannot append row. Length expected: " + columns.size() + ", got: "
 					+ row.getSize() + ".");
-		rows.add(row);
+		if(row.getColumns() != data)
+			throw new InternalInterpreterException("Cannot append row of an unrelated table.");
+		appendRowIndex(row.getIndex());
+	}
+
+	// appends a row given by its index in the column storage shared with the table this one was created from
+	void appendRowIndex(int index) {
+		if(rowCount == rows.length)
+			rows = Arrays.copyOf(rows, Math.max(2 * rows.length, 1));
+		rows[rowCount++] = index;
 	}
 
 	public int getColumnIndex(String column) {
@@ -99,12 +122,10 @@ public class Table implements Iterable<TableRow> {
 			throw new NoSuchAttributeException(column);
 		}
 		try {
-			int position = headersMap.get(column);
-			List<Value> result = new ArrayList<Value>();
-			for(TableRow row : rows) {
-				Value v = row.getIth(position);
-				result.add(v);
-			}
+			Column values = data[headersMap.get(column)];
+			List<Value> result = new ArrayList<Value>(rowCount);
+			for(int i = 0; i < rowCount; ++i)
+				result.add(values.get(rows[i]));
 			Type elementType = TypeCollection.computeElementType(result);
 			return new ValueList(result, elementType);
 		} catch(NullPointerException exception) {
@@ -112,12 +133,54 @@ public class Table implements Iterable<TableRow> {
 		}
 	}
 
+	// gets the storage of a column, or null if there is no such column
+	Column getColumnData(String column) {
+		Integer position = headersMap.get(column);
+		return position == null? null : data[position];
+	}
+
+	// columns referenced by the slots of a query, null for attributes that are not in this table
+	Column[] bind(IdentifierSlots slots) {
+		Column[] bound = new Column[slots.size()];
+		for(int i = 0; i < bound.length; ++i)
+			bound[i] = getColumnData(slots.getName(i));
+		return bound;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	// indices of the selected rows in the column storage; only the first getRowCount() entries are valid
+	int[] getRowIndices() {
+		return rows;
+	}
+
 	@Override
 	public Iterator<TableRow> iterator() {
-		return rows.iterator();
+		return new Iterator<TableRow>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < rowCount;
+			}
+
+			@Override
+			public TableRow next() {
+				if(next >= rowCount)
+					throw new NoSuchElementException();
+				return new TableRow(data, rows[next++]);
+			}
+		};
 	}
 
 	public void sort(Comparator<TableRow> comparator) {
-		Collections.sort(rows, comparator);
+		TableRow[] sorted = new TableRow[rowCount];
+		for(int i = 0; i < rowCount; ++i)
+			sorted[i] = new TableRow(data, rows[i]);
+		Arrays.sort(sorted, comparator);
+		for(int i = 0; i < rowCount; ++i)
+			rows[i] = sorted[i].getIndex();
 	}
 }
@@ -24,16 +24,16 @@
 
 package pl.edu.mimuw.cloudatlas.interpreter;
 
-import java.util.Arrays;
-
 import pl.edu.mimuw.cloudatlas.model.Value;
 
-// immutable
+// immutable; a view of a single row of the columns of a table
 public class TableRow {
-	private final Value[] columns;
+	private final Column[] columns;
+	private final int index;
 
-	public TableRow(Value[] values) {
-		this.columns = Arrays.copyOf(values, values.length);
+	TableRow(Column[] columns, int index) {
+		this.columns = columns;
+		this.index = index;
 	}
 
 	public int getSize() {
@@ -41,6 +41,15 @@ public class TableRow {
 	}
 
 	public Value getIth(int i) {
-		return columns[i];
+		return columns[i].get(index);
+	}
+
+	// position of this row in the columns it was created from
+	int getIndex() {
+		return index;
+	}
+
+	Column[] getColumns() {
+		return columns;
 	}
 }
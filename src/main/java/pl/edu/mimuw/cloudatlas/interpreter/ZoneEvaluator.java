@@ -0,0 +1,209 @@
+package pl.edu.mimuw.cloudatlas.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import pl.edu.mimuw.cloudatlas.model.PathName;
+import pl.edu.mimuw.cloudatlas.model.Value;
+import pl.edu.mimuw.cloudatlas.model.ValueString;
+import pl.edu.mimuw.cloudatlas.model.ZMI;
+
+/**
+ * Executes a query in every non-leaf zone of a subtree, bottom-up: a zone is evaluated once all its sons are. Sibling
+ * subtrees do not depend on each other, so they are evaluated in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * The result and the printed log are the same as for a sequential depth-first evaluation: sons are merged in the
+ * order in which they are stored in their father, and log lines of the whole subtree are printed together once the
+ * evaluation is finished.
+ * <p>
+ * An installed query may be evaluated {@link #evaluateChanged(ZMI, QueryPlan, Map) incrementally}: the result in a zone
+ * depends only on attributes of its sons, so it is computed again only when they changed since the last evaluation.
+ * Queries that are not {@link QueryPlan#isDeterministic() deterministic} are always computed again.
+ */
+public class ZoneEvaluator {
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates an evaluator using its own pool of the specified size.
+	 *
+	 * @param parallelism number of threads, or <code>0</code> to use one thread per available processor
+	 */
+	public ZoneEvaluator(int parallelism) {
+		this(new ForkJoinPool(parallelism > 0? parallelism : Runtime.getRuntime().availableProcessors()));
+	}
+
+	public ZoneEvaluator(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Executes the query in the specified zone and all its non-leaf descendants, storing the results as their
+	 * attributes.
+	 *
+	 * @param zmi the root of the evaluated subtree
+	 * @param plan the query to execute
+	 * @return results of the query keyed by zone and attribute, or <code>null</code> if <code>zmi</code> is a leaf
+	 */
+	public HashMap<String, Value> evaluate(ZMI zmi, QueryPlan plan) {
+		return print(pool.invoke(new ZoneTask(zmi, Collections.singletonList(plan), null)));
+	}
+
+	/**
+	 * Executes the query in these zones of the subtree, for which it may yield a different result than the last time.
+	 * These are the zones which have not been evaluated yet and those whose sons, or attributes of sons, changed since
+	 * then. Whole subtrees without changes are skipped. A query which is not {@link QueryPlan#isDeterministic()
+	 * deterministic} is executed in all the zones. A zone evaluated with a new result changes its own attributes, so
+	 * its father is evaluated as well.
+	 *
+	 * @param zmi the root of the evaluated subtree
+	 * @param plan the query to execute
+	 * @param evaluated versions of the zones as of their last evaluation of this query, updated by this method; an empty
+	 * map results in evaluation of all zones
+	 * @return results of the query in the evaluated zones, keyed by zone and attribute
+	 * @see ZMI#getCurrentVersion()
+	 */
+	public HashMap<String, Value> evaluateChanged(ZMI zmi, QueryPlan plan, Map<ZMI, Long> evaluated) {
+		List<QueryPlan> plans = Collections.singletonList(plan);
+		List<Map<ZMI, Long>> versions = Collections.singletonList(evaluated);
+		if(!isChanged(zmi, plans, versions))
+			return new HashMap<String, Value>();
+		return print(pool.invoke(new ZoneTask(zmi, plans, versions)));
+	}
+
+	/**
+	 * Executes many queries incrementally in a single traversal of the subtree. In every zone, the queries are
+	 * executed in the given order, each of them only if {@link #evaluateChanged(ZMI, QueryPlan, Map)} would execute it.
+	 *
+	 * @param zmi the root of the evaluated subtree
+	 * @param plans the queries to execute
+	 * @param evaluated versions of the zones as of the last evaluation, one map for every query
+	 * @see #evaluateChanged(ZMI, QueryPlan, Map)
+	 */
+	public void evaluateChanged(ZMI zmi, List<QueryPlan> plans, List<Map<ZMI, Long>> evaluated) {
+		if(plans.size() != evaluated.size())
+			throw new IllegalArgumentException("Expected " + plans.size() + " maps of versions, got " + evaluated.size()
+					+ ".");
+		if(isChanged(zmi, plans, evaluated))
+			print(pool.invoke(new ZoneTask(zmi, plans, evaluated)));
+	}
+
+	private static HashMap<String, Value> print(Evaluation evaluation) {
+		for(String line : evaluation.log)
+			System.out.println(line);
+		return evaluation.attributes;
+	}
+
+	// whether any of the queries may yield a new result below the zone since its last evaluation
+	private static boolean isChanged(ZMI zmi, List<QueryPlan> plans, List<Map<ZMI, Long>> evaluated) {
+		for(int i = 0; i < plans.size(); ++i) {
+			if(!plans.get(i).isDeterministic())
+				return true;
+			Long version = evaluated.get(i).get(zmi);
+			if(version == null || zmi.getSubtreeVersion() > version)
+				return true;
+		}
+		return false;
+	}
+
+	// whether the query may yield a new result in the zone since its last evaluation
+	private static boolean isInputChanged(ZMI zmi, QueryPlan plan, Map<ZMI, Long> evaluated) {
+		if(!plan.isDeterministic())
+			return true;
+		Long version = evaluated.get(zmi);
+		if(version == null || zmi.getSonsVersion() > version)
+			return true;
+		for(ZMI son : zmi.getSons())
+			if(son.getAttributesVersion() > version)
+				return true;
+		return false;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private static class Evaluation {
+		private final HashMap<String, Value> attributes;
+		private final List<String> log;
+
+		Evaluation(HashMap<String, Value> attributes, List<String> log) {
+			this.attributes = attributes;
+			this.log = log;
+		}
+	}
+
+	private static class ZoneTask extends RecursiveTask<Evaluation> {
+		private static final long serialVersionUID = 1L;
+
+		private final ZMI zmi;
+		private final List<QueryPlan> plans;
+		// versions of the last evaluation of every query, or null to evaluate all the zones
+		private final List<Map<ZMI, Long>> evaluated;
+
+		ZoneTask(ZMI zmi, List<QueryPlan> plans, List<Map<ZMI, Long>> evaluated) {
+			this.zmi = zmi;
+			this.plans = plans;
+			this.evaluated = evaluated;
+		}
+
+		@Override
+		protected Evaluation compute() {
+			List<ZMI> sons = zmi.getSons();
+			if(sons.isEmpty())
+				return new Evaluation(null, new ArrayList<String>());
+
+			List<ZoneTask> tasks = new ArrayList<ZoneTask>(sons.size());
+			for(ZMI son : sons)
+				if(!son.getSons().isEmpty() && (evaluated == null || isChanged(son, plans, evaluated)))
+					tasks.add(new ZoneTask(son, plans, evaluated));
+			invokeAll(tasks);
+
+			HashMap<String, Value> attributeMap = new HashMap<String, Value>();
+			List<String> log = new ArrayList<String>();
+			for(ZoneTask task : tasks) {
+				Evaluation son = task.join();
+				attributeMap.putAll(son.attributes);
+				log.addAll(son.log);
+			}
+
+			for(int i = 0; i < plans.size(); ++i) {
+				Map<ZMI, Long> versions = evaluated == null? null : evaluated.get(i);
+				if(versions != null && !isInputChanged(zmi, plans.get(i), versions))
+					continue;
+
+				// changes made during the evaluation get greater versions, so they are not missed next time
+				long version = ZMI.getCurrentVersion();
+				Interpreter interpreter = new Interpreter(zmi);
+				try {
+					List<QueryResult> result = interpreter.interpretPlan(plans.get(i));
+					PathName zone = getPathName(zmi);
+					for(QueryResult r : result) {
+						log.add(zone + ": " + r);
+						attributeMap.put(zone + ": " + r.getName(), r.getValue());
+						zmi.getAttributes().addOrChange(r.getName(), r.getValue());
+					}
+				} catch(InterpreterException exception) {
+					log.add(exception.getMessage());
+					attributeMap.clear();
+					attributeMap.put("Error in ZMI " + getPathName(zmi) + ":", new ValueString(exception.getMessage()));
+				}
+				if(versions != null)
+					versions.put(zmi, version);
+			}
+			return new Evaluation(attributeMap, log);
+		}
+	}
+
+	private static PathName getPathName(ZMI zmi) {
+		return new PathName(((ValueString)zmi.getAttributes().get("owner")).getValue());
+	}
+}
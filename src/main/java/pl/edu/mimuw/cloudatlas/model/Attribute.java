@@ -25,6 +25,9 @@
 package pl.edu.mimuw.cloudatlas.model;
 
 import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 /**
  * Represents an attribute (without value, name only).
@@ -32,19 +35,29 @@ import java.io.Serializable;
  * A valid attribute name is an identifier starting with a letter and containing only letters and digits. It can
  * additionally start with an ampersand - such names are reserved for queries.
  * <p>
- * This class is immutable.
+ * This class is immutable. Attributes with frequently used names should be obtained with {@link #of(String)}, which
+ * validates every name only once and returns a shared instance.
  */
 public class Attribute implements Serializable {
+    // fixed, since caching the hash changed the computed value; the serialized form still holds only the name
+    private static final long serialVersionUID = 4572002494841186078L;
+    private static final Pattern NAME_PATTERN = Pattern.compile("^&?[a-zA-Z]{1}[a-zA-z0-9_]*$");
+    // names also come from queries and other agents, so only that many are kept
+    private static final int MAX_INTERNED = 4096;
+    private static final ConcurrentMap<String, Attribute> interned = new ConcurrentHashMap<String, Attribute>();
+
     private final String name;
+    transient private int hash;
 
     /**
      * Creates a new <code>Attribute</code> object with the specified <code>name</code>.
      *
      * @param name the name of the attribute
      * @throws IllegalArgumentException if the <code>name</code> does not meet the rules
+     * @see #of(String)
      */
     public Attribute(String name) {
-        if (!name.matches("^&?[a-zA-Z]{1}[a-zA-z0-9_]*$"))
+        if (!NAME_PATTERN.matcher(name).matches())
             throw new IllegalArgumentException("Invalid name: may contain only letters, digits, underscores, "
                     + "must start with a letter and may optionally have an ampersand at the beginning.");
         this.name = name;
@@ -54,6 +67,27 @@ public class Attribute implements Serializable {
         name = null;
     }
 
+    /**
+     * Gets an attribute with the specified <code>name</code>. The name is validated the first time it is used and the
+     * same instance is returned for it later, so this is much cheaper than creating a new attribute.
+     *
+     * @param name the name of the attribute
+     * @return an attribute equal to <code>new Attribute(name)</code>
+     * @throws IllegalArgumentException if the <code>name</code> does not meet the rules
+     */
+    public static Attribute of(String name) {
+        Attribute attribute = interned.get(name);
+        if (attribute != null)
+            return attribute;
+        attribute = new Attribute(name);
+        if (interned.size() < MAX_INTERNED) {
+            Attribute existing = interned.putIfAbsent(name, attribute);
+            if (existing != null)
+                return existing;
+        }
+        return attribute;
+    }
+
     /**
      * Indicates whether an <code>attribute</code> represents a query. This is true if and only if attribute name starts with an
      * ampersand.
@@ -82,7 +116,12 @@ public class Attribute implements Serializable {
      */
     @Override
     public int hashCode() {
-        return name.hashCode();
+        int result = hash;
+        if (result == 0) {
+            result = name.hashCode();
+            hash = result;
+        }
+        return result;
     }
 
     /**
@@ -94,6 +133,8 @@ public class Attribute implements Serializable {
      */
     @Override
     public boolean equals(Object object) {
+        if (object == this)
+            return true;
         if (object == null)
             return false;
         if (getClass() != object.getClass())
@@ -24,6 +24,10 @@
 
 package pl.edu.mimuw.cloudatlas.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -32,9 +36,72 @@ import java.util.Map.Entry;
 
 /**
  * Represents a map from <code>Attribute</code> to <code>Value</code>. It cannot contain duplicate keys.
+ * <p>
+ * The map is safe for concurrent use. Its contents are kept in an immutable state, which every change replaces under
+ * the lock of the map, so readers never wait for writers and always see a value together with its version. An
+ * iterator goes over the state from the moment it was created and never fails because of concurrent changes. The state
+ * is made of persistent maps, so a new state shares almost everything with the previous one and a copy of the map
+ * takes constant time.
  */
 public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneable, Serializable {
-	private Map<Attribute, Value> map = new HashMap<Attribute, Value>();
+	// the value computed for the class before the map kept versions, so maps serialized by older agents can be read
+	private static final long serialVersionUID = 3235393086542342755L;
+	// the serialized form of the state: values in the field read by older agents, which skip the versions
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("map", Map.class),
+		new ObjectStreamField("versions", Map.class)
+	};
+	
+	// values and versions of the last changes of attributes, see ZMI#getCurrentVersion()
+	private static final class State {
+		static final State EMPTY = new State(PersistentMap.<Attribute, Value>empty(),
+				PersistentMap.<Attribute, Long>empty());
+		
+		final PersistentMap<Attribute, Value> map;
+		final PersistentMap<Attribute, Long> versions;
+		
+		State(PersistentMap<Attribute, Value> map, PersistentMap<Attribute, Long> versions) {
+			this.map = map;
+			this.versions = versions;
+		}
+	}
+	
+	transient private volatile State state = State.EMPTY;
+	transient private ZMI owner;
+	
+	// the zone notified about changes of this map, if any
+	void setOwner(ZMI owner) {
+		this.owner = owner;
+	}
+	
+	// publishes the state with the specified attribute set or removed, if the value is null; called with the lock held
+	private void update(Attribute attribute, Value value, long version) {
+		State current = state;
+		if(value == null)
+			state = new State(current.map.remove(attribute), current.versions.remove(attribute));
+		else
+			state = new State(current.map.put(attribute, value), current.versions.put(attribute, version));
+		// the father of the zone finds its sons by their names
+		if(owner != null && attribute.equals(ZMI.NAME))
+			owner.nameChanged();
+	}
+	
+	private long changed() {
+		return owner == null? ZMI.nextVersion() : owner.attributesChanged();
+	}
+	
+	// overwriting a value with an identical one is not a change, so results of queries that are recomputed without
+	// changes in the input do not mark the zone again
+	private static boolean isSame(Value oldValue, Value value) {
+		if(oldValue == null || oldValue.getClass() != value.getClass()
+				|| !oldValue.getType().isCompatible(value.getType()) || !value.getType().isCompatible(oldValue.getType()))
+			return false;
+		try {
+			return oldValue.equals(value);
+		} catch(RuntimeException exception) {
+			return false;
+		}
+	}
 	
 	private void checkNulls(Attribute attribute, Value value) {
 		if(attribute == null)
@@ -59,12 +126,12 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #add(Entry)
 	 * @see #add(AttributesMap)
 	 */
-	public void add(Attribute attribute, Value value) {
+	public synchronized void add(Attribute attribute, Value value) {
 		if(getOrNull(attribute) != null)
 			throw new IllegalArgumentException("Attribute \"" + attribute.getName()
 					+ "\" already exists. Use method addOrChange(Attribute, Value) instead.");
 		checkNulls(attribute, value);
-		map.put(attribute, value);
+		update(attribute, value, changed());
 	}
 	
 	/**
@@ -77,7 +144,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #addOrChange(String, Value)
 	 */
 	public void add(String name, Value value) {
-		add(new Attribute(name), value);
+		add(Attribute.of(name), value);
 	}
 	
 	/**
@@ -100,7 +167,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #addOrChange(AttributesMap)
 	 */
 	public void add(AttributesMap attributes) {
-		for(Entry<Attribute, Value> entry : attributes.map.entrySet())
+		for(Entry<Attribute, Value> entry : attributes.state.map)
 			add(entry);
 	}
 	
@@ -117,9 +184,53 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #addOrChange(Entry)
 	 * @see #addOrChange(AttributesMap)
 	 */
-	public void addOrChange(Attribute attribute, Value value) {
-		map.put(attribute, value);
+	public synchronized void addOrChange(Attribute attribute, Value value) {
+		checkNulls(attribute, value);
+		if(!isSame(state.map.get(attribute), value))
+			update(attribute, value, changed());
+	}
+	
+	/**
+	 * Adds or overwrites an attribute with a value received from another agent, keeping the version stamped by the
+	 * agent owning the zone. The value is set only if the specified <code>version</code> is greater than the version
+	 * of the current value.
+	 * 
+	 * @param attribute the attribute to add or overwrite
+	 * @param value the value for the <code>attribute</code>
+	 * @param version the version of the value, or <code>0</code> if unknown, which stamps it with a new version as
+	 * {@link #addOrChange(Attribute, Value)} does
+	 * @return whether the value was set
+	 * @throws NullPointerException if either the <code>attribute</code> or the <code>value</code> is <code>null</code>
+	 * @see #getVersion(Attribute)
+	 */
+	public synchronized boolean addOrChange(Attribute attribute, Value value, long version) {
 		checkNulls(attribute, value);
+		if(version <= 0) {
+			addOrChange(attribute, value);
+			return true;
+		}
+		if(version <= getVersion(attribute))
+			return false;
+		Value oldValue = state.map.get(attribute);
+		if(!isSame(oldValue, value) && owner != null)
+			owner.attributesChanged();
+		update(attribute, value, version);
+		return true;
+	}
+	
+	/**
+	 * Gets the version of the last change of the specified attribute. Versions of attributes changed in this agent are
+	 * taken from {@link ZMI#getCurrentVersion() the clock of the zones}, while attributes received from other agents
+	 * keep their original versions.
+	 * 
+	 * @param attribute the attribute
+	 * @return the version or <code>0</code> if the attribute does not exist
+	 * @see #addOrChange(Attribute, Value, long)
+	 */
+	public long getVersion(Attribute attribute) {
+		checkAttribute(attribute);
+		Long version = state.versions.get(attribute);
+		return version == null? 0 : version;
 	}
 	
 	/**
@@ -132,7 +243,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #add(String, Value)
 	 */
 	public void addOrChange(String name, Value value) {
-		addOrChange(new Attribute(name), value);
+		addOrChange(Attribute.of(name), value);
 	}
 	
 	/**
@@ -156,7 +267,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #add(AttributesMap)
 	 */
 	public void addOrChange(AttributesMap attributes) {
-		for(Entry<Attribute, Value> entry : attributes.map.entrySet())
+		for(Entry<Attribute, Value> entry : attributes.state.map)
 			addOrChange(entry);
 	}
 	
@@ -193,7 +304,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #getOrNull(String)
 	 */
 	public Value get(String name) {
-		return get(new Attribute(name));
+		return get(Attribute.of(name));
 	}
 	
 	/**
@@ -208,7 +319,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 */
 	public Value getOrNull(Attribute attribute) {
 		checkAttribute(attribute);
-		return map.get(attribute);
+		return state.map.get(attribute);
 	}
 	
 	/**
@@ -220,7 +331,7 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #getOr(String)
 	 */
 	public Value getOrNull(String name) {
-		return getOrNull(new Attribute(name));
+		return getOrNull(Attribute.of(name));
 	}
 	
 	/**
@@ -231,9 +342,13 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @throws NullPointerException if the <code>attribute</code> is <code>null</code>
 	 * @see #remove(String)
 	 */
-	public void remove(Attribute attribute) {
+	public synchronized void remove(Attribute attribute) {
 		checkAttribute(attribute);
-		map.remove(attribute);
+		if(state.map.containsKey(attribute)) {
+			update(attribute, null, 0);
+			if(owner != null)
+				owner.attributesChanged();
+		}
 	}
 	
 	/**
@@ -243,11 +358,21 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 * @see #remove(Attribute)
 	 */
 	public void remove(String name) {
-		map.remove(new Attribute(name));
+		remove(Attribute.of(name));
+	}
+	
+	/**
+	 * Returns the number of attributes stored in this map.
+	 * 
+	 * @return the number of attributes
+	 */
+	public int size() {
+		return state.map.size();
 	}
 	
 	/**
-	 * Returns an iterator over all entries stored in this map.
+	 * Returns an iterator over all entries stored in this map. The iterator does not reflect changes made after it was
+	 * created and it does not support removing entries.
 	 * 
 	 * @return an iterator for this map
 	 * @see java.util.Iterator
@@ -255,22 +380,64 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 */
 	@Override
 	public Iterator<Entry<Attribute, Value>> iterator() {
-		return map.entrySet().iterator();
+		return state.map.iterator();
 	}
 	
 	/**
 	 * Creates a copy of this map. Since <code>Value</code> and <code>Attribute</code> are immutable classes, this
-	 * method does not clone them.
+	 * method does not clone them. The copy shares the current state with this map, so it takes constant time and it
+	 * is a consistent snapshot even if this map is changed concurrently.
 	 * 
-	 * @return a copy of this map containing identical entries
+	 * @return a copy of this map containing identical entries with identical versions
 	 */
 	@Override
 	public AttributesMap clone() {
 		AttributesMap result = new AttributesMap();
-		result.add(this);
+		result.state = state;
+		return result;
+	}
+	
+	// attributes share this map with another one, as a copy of it would, in constant time
+	void share(AttributesMap attributes) {
+		State shared = attributes.state;
+		synchronized(this) {
+			state = shared;
+			if(owner != null && !shared.map.isEmpty())
+				owner.attributesChanged();
+		}
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		State current = state;
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("map", toHashMap(current.map));
+		fields.put("versions", toHashMap(current.versions));
+		out.writeFields();
+	}
+	
+	private static <V> HashMap<Attribute, V> toHashMap(PersistentMap<Attribute, V> map) {
+		HashMap<Attribute, V> result = new HashMap<Attribute, V>();
+		for(Entry<Attribute, V> entry : map)
+			result.put(entry.getKey(), entry.getValue());
 		return result;
 	}
 	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Map<Attribute, Value> map = (Map<Attribute, Value>)fields.get("map", null);
+		Map<Attribute, Long> versions = (Map<Attribute, Long>)fields.get("versions", null);
+		State result = State.EMPTY;
+		if(map != null)
+			for(Entry<Attribute, Value> entry : map.entrySet())
+				result = new State(result.map.put(entry.getKey(), entry.getValue()), result.versions);
+		// maps serialized by agents without versions have none
+		if(versions != null)
+			for(Entry<Attribute, Long> entry : versions.entrySet())
+				result = new State(result.map, result.versions.put(entry.getKey(), entry.getValue()));
+		state = result;
+	}
+	
 	/**
 	 * Returns a string representation of this map listing all key-value pairs stored in it.
 	 * 
@@ -278,6 +445,6 @@ public class AttributesMap implements Iterable<Entry<Attribute, Value>>, Cloneab
 	 */
 	@Override
 	public String toString() {
-		return map.toString();
+		return state.map.toString();
 	}
 }
@@ -30,11 +30,16 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Represent a fully qualified name of a zone, also known as a global name or a path name. This class is immutable.
  */
 public class PathName implements Serializable {
+	// compiled once, paths are parsed on every lookup of a zone; initialized before ROOT, which uses them
+	private static final Pattern NAME_PATTERN = Pattern.compile("(/\\w+)*");
+	private static final Pattern COMPONENT_PATTERN = Pattern.compile("\\w+");
+	
 	/**
 	 * The object representing a name of the root zone (/).
 	 */
@@ -55,7 +60,7 @@ public class PathName implements Serializable {
 	public PathName(String name) {
 		// we accept null and "/" as names of a root zone, however, we convert all of them to ""
 		name = name == null || name.equals("/")? "" : name.trim();
-		if(!name.matches("(/\\w+)*"))
+		if(!NAME_PATTERN.matcher(name).matches())
 			throw new IllegalArgumentException("Incorrect fully qualified name: " + name + ".");
 		this.name = name;
 		components = name.equals("")? new ArrayList<String>() : Arrays.asList(name.substring(1).split("/"));
@@ -77,7 +82,7 @@ public class PathName implements Serializable {
 			String currentName = "";
 			for(String c : components) {
 				currentName += "/" + c;
-				if(!c.matches("\\w+"))
+				if(!COMPONENT_PATTERN.matcher(c).matches())
 					throw new IllegalArgumentException("Incorrect component " + c + ".");
 			}
 			this.name = currentName;
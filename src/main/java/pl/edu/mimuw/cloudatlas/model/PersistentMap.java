@@ -0,0 +1,422 @@
+package pl.edu.mimuw.cloudatlas.model;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map from keys to values, implemented as a hash array mapped trie. Changing a map creates a new one,
+ * which shares all the unchanged parts of the trie with the old one, so a change takes time and memory logarithmic in
+ * the size of the map and an old version stays valid forever. Such a map may be read by any number of threads without
+ * synchronization.
+ * <p>
+ * Every node of the trie covers 5 bits of the hash code of keys. It keeps a bitmap of the present children and an array
+ * of just these children, each of them being either an entry or a node one level deeper. Keys with equal hash codes are
+ * kept together in a collision node.
+ *
+ * @param <K> the type of keys, which must not be <code>null</code>
+ * @param <V> the type of values, which must not be <code>null</code>
+ */
+public final class PersistentMap<K, V> implements Iterable<Entry<K, V>> {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	// levels covering all the bits of a hash code and a collision node below them
+	private static final int MAX_DEPTH = (Integer.SIZE + BITS - 1) / BITS + 1;
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentMap EMPTY = new PersistentMap<Object, Object>(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Gets an empty map.
+	 *
+	 * @return an empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	private static int hash(Object key) {
+		int hash = key.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int index(int hash, int shift) {
+		return (hash >>> shift) & MASK;
+	}
+
+	/**
+	 * Gets the value mapped to the specified <code>key</code>.
+	 *
+	 * @param key the key to look for
+	 * @return the value or <code>null</code> if the <code>key</code> is not in this map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Leaf leaf = root == null? null : root.find(key, hash(key), 0);
+		return leaf == null? null : (V)leaf.getValue();
+	}
+
+	/**
+	 * Checks whether the specified <code>key</code> is in this map.
+	 *
+	 * @param key the key to look for
+	 * @return whether any value is mapped to the <code>key</code>
+	 */
+	public boolean containsKey(Object key) {
+		return root != null && root.find(key, hash(key), 0) != null;
+	}
+
+	/**
+	 * Creates a map with the specified <code>key</code> mapped to the specified <code>value</code> and all the other
+	 * mappings of this map.
+	 *
+	 * @param key the key to add or overwrite
+	 * @param value the value for the <code>key</code>
+	 * @return the new map, or this map if the <code>key</code> is already mapped to the very same <code>value</code>
+	 * @throws NullPointerException if either the <code>key</code> or the <code>value</code> is <code>null</code>
+	 */
+	public PersistentMap<K, V> put(K key, V value) {
+		if(key == null || value == null)
+			throw new NullPointerException("Neither a key nor a value can be null.");
+		Leaf leaf = new Leaf(key, value, hash(key));
+		if(root == null)
+			return new PersistentMap<K, V>(new BitmapNode(0, new Object[0]).put(leaf, 0), 1);
+		Node newRoot = root.put(leaf, 0);
+		if(newRoot == root)
+			return this;
+		return new PersistentMap<K, V>(newRoot, containsKey(key)? size : size + 1);
+	}
+
+	/**
+	 * Creates a map with all the mappings of this map except for the one of the specified <code>key</code>.
+	 *
+	 * @param key the key to remove
+	 * @return the new map, or this map if the <code>key</code> is not in it
+	 */
+	public PersistentMap<K, V> remove(Object key) {
+		if(root == null)
+			return this;
+		Node newRoot = root.remove(key, hash(key), 0);
+		if(newRoot == root)
+			return this;
+		return size == 1? PersistentMap.<K, V>empty() : new PersistentMap<K, V>(newRoot, size - 1);
+	}
+
+	/**
+	 * Returns the number of mappings in this map.
+	 *
+	 * @return the number of keys
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks whether this map has no mappings.
+	 *
+	 * @return whether this map is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns an iterator over all entries stored in this map, in an order determined by the hash codes of their keys.
+	 * The entries cannot be modified.
+	 *
+	 * @return an iterator for this map
+	 */
+	@Override
+	public Iterator<Entry<K, V>> iterator() {
+		return new EntryIterator<K, V>(root);
+	}
+
+	/**
+	 * Returns a string representation of this map in the same format as <code>java.util.AbstractMap</code> does.
+	 *
+	 * @return a string representation of this object
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+		for(Entry<K, V> entry : this) {
+			if(builder.length() > 1)
+				builder.append(", ");
+			builder.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return builder.append('}').toString();
+	}
+
+	private static final class Leaf extends SimpleImmutableEntry<Object, Object> {
+		private static final long serialVersionUID = 1L;
+
+		final int hash;
+
+		Leaf(Object key, Object value, int hash) {
+			super(key, value);
+			this.hash = hash;
+		}
+	}
+
+	private static abstract class Node {
+		// the entry with the key or null
+		abstract Leaf find(Object key, int hash, int shift);
+
+		// this node if nothing changed
+		abstract Node put(Leaf leaf, int shift);
+
+		// this node if nothing changed, null if the node became empty
+		abstract Node remove(Object key, int hash, int shift);
+
+		// the only entry if there are no other entries and no nodes below, null otherwise
+		abstract Leaf single();
+
+		// entries and nodes below
+		abstract Object[] children();
+	}
+
+	private static final class BitmapNode extends Node {
+		final int bitmap;
+		final Object[] children;
+
+		BitmapNode(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+
+		private int position(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		@Override
+		Leaf find(Object key, int hash, int shift) {
+			int bit = 1 << index(hash, shift);
+			if((bitmap & bit) == 0)
+				return null;
+			Object child = children[position(bit)];
+			if(child instanceof Leaf) {
+				Leaf leaf = (Leaf)child;
+				return leaf.hash == hash && leaf.getKey().equals(key)? leaf : null;
+			}
+			return ((Node)child).find(key, hash, shift + BITS);
+		}
+
+		@Override
+		Node put(Leaf leaf, int shift) {
+			int bit = 1 << index(leaf.hash, shift);
+			int position = position(bit);
+			if((bitmap & bit) == 0) {
+				Object[] newChildren = new Object[children.length + 1];
+				System.arraycopy(children, 0, newChildren, 0, position);
+				newChildren[position] = leaf;
+				System.arraycopy(children, position, newChildren, position + 1, children.length - position);
+				return new BitmapNode(bitmap | bit, newChildren);
+			}
+			Object child = children[position];
+			Object newChild;
+			if(child instanceof Leaf) {
+				Leaf old = (Leaf)child;
+				if(old.hash == leaf.hash && old.getKey().equals(leaf.getKey())) {
+					if(old.getValue() == leaf.getValue())
+						return this;
+					newChild = leaf;
+				} else
+					newChild = merge(old, leaf, shift + BITS);
+			} else {
+				newChild = ((Node)child).put(leaf, shift + BITS);
+				if(newChild == child)
+					return this;
+			}
+			return replace(position, newChild);
+		}
+
+		@Override
+		Node remove(Object key, int hash, int shift) {
+			int bit = 1 << index(hash, shift);
+			if((bitmap & bit) == 0)
+				return this;
+			int position = position(bit);
+			Object child = children[position];
+			if(child instanceof Leaf) {
+				Leaf leaf = (Leaf)child;
+				if(leaf.hash != hash || !leaf.getKey().equals(key))
+					return this;
+				return without(bit, position);
+			}
+			Node node = (Node)child;
+			Node newNode = node.remove(key, hash, shift + BITS);
+			if(newNode == node)
+				return this;
+			if(newNode == null)
+				return without(bit, position);
+			// an entry left alone below is moved up, so paths stay as short as possible
+			Leaf single = newNode.single();
+			return replace(position, single != null? single : newNode);
+		}
+
+		private Node replace(int position, Object child) {
+			Object[] newChildren = children.clone();
+			newChildren[position] = child;
+			return new BitmapNode(bitmap, newChildren);
+		}
+
+		private Node without(int bit, int position) {
+			if(children.length == 1)
+				return null;
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, position);
+			System.arraycopy(children, position + 1, newChildren, position, newChildren.length - position);
+			return new BitmapNode(bitmap & ~bit, newChildren);
+		}
+
+		@Override
+		Leaf single() {
+			return children.length == 1 && children[0] instanceof Leaf? (Leaf)children[0] : null;
+		}
+
+		@Override
+		Object[] children() {
+			return children;
+		}
+	}
+
+	// a node with two entries whose keys differ, starting from the specified level
+	private static Node merge(Leaf first, Leaf second, int shift) {
+		if(first.hash == second.hash)
+			return new CollisionNode(first.hash, new Leaf[] { first, second });
+		int firstIndex = index(first.hash, shift);
+		int secondIndex = index(second.hash, shift);
+		if(firstIndex == secondIndex)
+			return new BitmapNode(1 << firstIndex, new Object[] { merge(first, second, shift + BITS) });
+		Object[] children = firstIndex < secondIndex? new Object[] { first, second } : new Object[] { second, first };
+		return new BitmapNode((1 << firstIndex) | (1 << secondIndex), children);
+	}
+
+	private static final class CollisionNode extends Node {
+		final int hash;
+		final Leaf[] leaves;
+
+		CollisionNode(int hash, Leaf[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+
+		private int position(Object key) {
+			for(int i = 0; i < leaves.length; i++)
+				if(leaves[i].getKey().equals(key))
+					return i;
+			return -1;
+		}
+
+		@Override
+		Leaf find(Object key, int hash, int shift) {
+			if(hash != this.hash)
+				return null;
+			int position = position(key);
+			return position < 0? null : leaves[position];
+		}
+
+		@Override
+		Node put(Leaf leaf, int shift) {
+			if(leaf.hash != hash)
+				// keys with another hash code share only a part of it, the node goes one level down
+				return new BitmapNode(1 << index(hash, shift), new Object[] { this }).put(leaf, shift);
+			int position = position(leaf.getKey());
+			Leaf[] newLeaves;
+			if(position < 0) {
+				newLeaves = new Leaf[leaves.length + 1];
+				System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+				newLeaves[leaves.length] = leaf;
+			} else {
+				if(leaves[position].getValue() == leaf.getValue())
+					return this;
+				newLeaves = leaves.clone();
+				newLeaves[position] = leaf;
+			}
+			return new CollisionNode(hash, newLeaves);
+		}
+
+		@Override
+		Node remove(Object key, int hash, int shift) {
+			int position = hash == this.hash? position(key) : -1;
+			if(position < 0)
+				return this;
+			if(leaves.length == 1)
+				return null;
+			Leaf[] newLeaves = new Leaf[leaves.length - 1];
+			System.arraycopy(leaves, 0, newLeaves, 0, position);
+			System.arraycopy(leaves, position + 1, newLeaves, position, newLeaves.length - position);
+			return new CollisionNode(hash, newLeaves);
+		}
+
+		@Override
+		Leaf single() {
+			return leaves.length == 1? leaves[0] : null;
+		}
+
+		@Override
+		Object[] children() {
+			return leaves;
+		}
+	}
+
+	// goes through the trie depth first, keeping the path to the current entry
+	private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+		private final Object[][] path = new Object[MAX_DEPTH + 1][];
+		private final int[] positions = new int[MAX_DEPTH + 1];
+		private int depth = -1;
+		private Leaf next;
+
+		EntryIterator(Node root) {
+			if(root != null)
+				enter(root);
+			advance();
+		}
+
+		private void enter(Node node) {
+			path[++depth] = node.children();
+			positions[depth] = 0;
+		}
+
+		private void advance() {
+			next = null;
+			while(depth >= 0) {
+				if(positions[depth] == path[depth].length) {
+					path[depth--] = null;
+					continue;
+				}
+				Object child = path[depth][positions[depth]++];
+				if(child instanceof Leaf) {
+					next = (Leaf)child;
+					return;
+				}
+				enter((Node)child);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Entry<K, V> next() {
+			if(next == null)
+				throw new NoSuchElementException();
+			Entry<K, V> result = (Entry<K, V>)(Entry<?, ?>)next;
+			advance();
+			return result;
+		}
+	}
+}
@@ -34,7 +34,7 @@ import pl.edu.mimuw.cloudatlas.model.ValueNull;
  * @see Type#isCompatible(Value)
  */
 public class ValueNull extends Value {
-	private static ValueNull instance = null;
+	private static final ValueNull instance = new ValueNull();
 	
 	private ValueNull() {}
 	
@@ -45,8 +45,6 @@ public class ValueNull extends Value {
 	 * @return an instance of <code>ValueNull</code>
 	 */
 	public static ValueNull getInstance() {
-		if(instance == null)
-			instance = new ValueNull();
 		return instance;
 	}
 	
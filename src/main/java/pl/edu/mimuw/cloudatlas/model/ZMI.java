@@ -24,22 +24,57 @@
 
 package pl.edu.mimuw.cloudatlas.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A zone management information. This object is a single node in a zone hierarchy. It stores zone attributes as well as
  * references to its father and sons in the tree.
+ * <p>
+ * The tree may be read and changed by many threads at once. Attributes are kept in a map whose readers never block
+ * (see {@link AttributesMap}) and the list of sons is copied on every change, so iterating over sons or attributes
+ * sees a consistent state and never fails because of a concurrent change. Sons change rarely, unlike attributes.
  */
 public class ZMI implements Cloneable, Serializable {
+	// the value computed for the class before versions were added, agents of that version send serialized ZMIs
+	private static final long serialVersionUID = 8842427018162055293L;
+	// versions follow the wall clock, with room for 1024 changes per millisecond, so that versions stamped after a
+	// restart of the agent are greater than the ones stamped before
+	private static final int VERSION_SHIFT = 10;
+	private static final AtomicLong clock = new AtomicLong();
+	static final Attribute NAME = Attribute.of("name");
+	
 	private final AttributesMap attributes = new AttributesMap();
 	
-	private final List<ZMI> sons = new ArrayList<ZMI>();
-	transient private ZMI father;
+	// replaced only when a ZMI is deserialized
+	private List<ZMI> sons = new CopyOnWriteArrayList<ZMI>();
+	transient private volatile ZMI father;
+	
+	// versions of the last changes, taken from the clock: of the attributes of this zone, of its list of sons and of
+	// anything strictly below it
+	transient private volatile long attributesVersion;
+	transient private volatile long sonsVersion;
+	transient private volatile long subtreeVersion;
+	// sons by their names and names of indexed sons, built by the first getSon(String) and then kept up to date
+	transient private Map<String, ZMI> sonsByName;
+	transient private Map<ZMI, String> namesOfSons;
+	// version of the last change of sons of this ZMI or of any ZMI below it, see getZMIWithLevel(Long)
+	transient private volatile long structureVersion;
+	transient private List<List<ZMI>> levels;
+	transient private long levelsVersion;
+	transient private int height;
+	transient private long heightVersion = -1;
 	
 	/**
 	 * Creates a new ZMI with no father (the root zone) and empty sons list.
@@ -58,6 +93,103 @@ public class ZMI implements Cloneable, Serializable {
 	 */
 	public ZMI(ZMI father) {
 		this.father = father;
+		attributes.setOwner(this);
+	}
+	
+	/**
+	 * Gets the current version of all the zones. Every change of attributes or sons of any ZMI gets a version greater
+	 * than all the previous ones, so a change happened after this call if and only if its version is greater than the
+	 * returned value.
+	 * 
+	 * @return the version of the most recent change
+	 * @see #getAttributesVersion()
+	 */
+	public static long getCurrentVersion() {
+		return clock.get();
+	}
+	
+	/**
+	 * Gets the version of the last change of attributes of this ZMI.
+	 * 
+	 * @return the version of the last change or <code>0</code> if attributes were not changed
+	 * @see #getCurrentVersion()
+	 */
+	public long getAttributesVersion() {
+		return attributesVersion;
+	}
+	
+	/**
+	 * Gets the version of the last change of the list of sons of this ZMI.
+	 * 
+	 * @return the version of the last change or <code>0</code> if sons were not changed
+	 * @see #getCurrentVersion()
+	 */
+	public long getSonsVersion() {
+		return sonsVersion;
+	}
+	
+	/**
+	 * Gets the version of the last change of attributes or sons of any ZMI below this one. Changes of this ZMI itself
+	 * are not included.
+	 * 
+	 * @return the version of the last change or <code>0</code> if nothing was changed
+	 * @see #getCurrentVersion()
+	 */
+	public long getSubtreeVersion() {
+		return subtreeVersion;
+	}
+	
+	/**
+	 * Converts a version stamped by an agent whose clock is ahead of the local one by the specified offset to the
+	 * version the local agent would stamp at the same moment.
+	 * 
+	 * @param version a version stamped by another agent, versions not greater than <code>0</code> are not changed
+	 * @param clockOffset the offset of the clock of the other agent in milliseconds
+	 * @return a version comparable with the local ones, at least <code>1</code>
+	 */
+	public static long toLocalVersion(long version, long clockOffset) {
+		if(version <= 0)
+			return version;
+		return Math.max(version - (clockOffset << VERSION_SHIFT), 1);
+	}
+	
+	// a version greater than all the previous ones
+	static long nextVersion() {
+		long now = System.currentTimeMillis() << VERSION_SHIFT;
+		return clock.updateAndGet(last -> Math.max(last + 1, now));
+	}
+	
+	// called by the map of attributes after every change, returns the version of the change
+	long attributesChanged() {
+		long version = nextVersion();
+		synchronized(this) {
+			if(attributesVersion < version)
+				attributesVersion = version;
+		}
+		propagate(father, version);
+		return version;
+	}
+	
+	private void sonsChanged() {
+		long version = nextVersion();
+		synchronized(this) {
+			if(sonsVersion < version)
+				sonsVersion = version;
+		}
+		propagate(this, version);
+		for(ZMI zmi = this; zmi != null; zmi = zmi.father)
+			synchronized(zmi) {
+				if(zmi.structureVersion < version)
+					zmi.structureVersion = version;
+			}
+	}
+	
+	private static void propagate(ZMI zmi, long version) {
+		for(; zmi != null; zmi = zmi.father)
+			synchronized(zmi) {
+				if(zmi.subtreeVersion < version)
+					zmi.subtreeVersion = version;
+			}
 	}
 	
 	/**
@@ -99,6 +231,11 @@ public class ZMI implements Cloneable, Serializable {
 	 */
 	public void addSon(ZMI son) {
 		sons.add(son);
+		synchronized(this) {
+			if(sonsByName != null)
+				indexSon(son);
+		}
+		sonsChanged();
 	}
 	
 	/**
@@ -109,7 +246,13 @@ public class ZMI implements Cloneable, Serializable {
 	 * @see #setFather(ZMI)
 	 */
 	public void removeSon(ZMI son) {
-		sons.remove(son);
+		if(sons.remove(son)) {
+			synchronized(this) {
+				if(sonsByName != null)
+					unindexSon(son);
+			}
+			sonsChanged();
+		}
 	}
 	
 	/**
@@ -122,40 +265,81 @@ public class ZMI implements Cloneable, Serializable {
 	}
 
 	/**
-	 * Gets an array of all son ZMI's with given level.
+	 * Gets all the zones with the given level in the subtree of this ZMI. The level of a zone is its distance from the
+	 * root zone, the same as its <code>level</code> attribute. Zones are indexed by their levels in the root zone; the
+	 * index is rebuilt only after sons of some zone change, so a call costs no more than the number of zones at the
+	 * level. Modifying a return value will cause an exception.
 	 *
-	 * @return List of ZMI
+	 * @param level a level of zones
+	 * @return zones with the given level, possibly empty
 	 */
-	public ArrayList<ZMI> getZMIWithLevel(Long level) {
-		if (((ValueBoolean)this.getAttributes().get("level").isEqual(new ValueInt(level))).getValue()) {
-			ArrayList arr = new ArrayList();
-			arr.add(this);
-			return arr;
-		}
-
-		if (!(this.getAttributes().get("level").isLowerThan(new ValueInt(level))).getValue()) {
-			return null;
-		}
-
-		ArrayList arr = new ArrayList();
-		for (ZMI zmi: this.getSons()) {
-			ArrayList zmis = zmi.getZMIWithLevel(level);
-			if (zmis != null) {
-				arr.addAll(zmis);
+	public List<ZMI> getZMIWithLevel(Long level) {
+		ZMI root = this;
+		while(root.father != null)
+			root = root.father;
+		List<List<ZMI>> levels = root.getLevels();
+		if(level < 0 || level >= levels.size())
+			return Collections.emptyList();
+		List<ZMI> zones = levels.get(level.intValue());
+		if(root == this)
+			return zones;
+		List<ZMI> result = new ArrayList<ZMI>();
+		for(ZMI zone : zones)
+			if(zone.isInSubtreeOf(this))
+				result.add(zone);
+		return Collections.unmodifiableList(result);
+	}
+	
+	// zones of the tree of this root zone by their levels, rebuilt after a change of sons of any zone
+	private synchronized List<List<ZMI>> getLevels() {
+		long version = structureVersion;
+		if(levels == null || levelsVersion != version) {
+			List<List<ZMI>> result = new ArrayList<List<ZMI>>();
+			List<ZMI> level = Collections.singletonList(this);
+			while(!level.isEmpty()) {
+				result.add(Collections.unmodifiableList(level));
+				List<ZMI> next = new ArrayList<ZMI>();
+				for(ZMI zone : level)
+					next.addAll(zone.sons);
+				level = next;
 			}
+			levels = Collections.unmodifiableList(result);
+			levelsVersion = version;
 		}
-		return arr.size() > 0 ? arr : null;
+		return levels;
 	}
-
+	
+	private boolean isInSubtreeOf(ZMI zmi) {
+		for(ZMI zone = this; zone != null; zone = zone.father)
+			if(zone == zmi)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Gets the greatest level of a zone in the subtree of this ZMI, including this ZMI itself. The height of the subtree
+	 * is cached until sons of some zone in it change.
+	 * 
+	 * @return the level of the deepest zone below this ZMI
+	 * @see #getZMIWithLevel(Long)
+	 */
 	public Long getNodeDepth() {
-		Long depth = ((ValueInt)this.attributes.get("level")).getValue();
-		for (ZMI son: sons) {
-			Long sonDepth = son.getNodeDepth();
-			if (sonDepth > depth) {
-				depth = sonDepth;
-			}
+		long level = 0;
+		for(ZMI zone = father; zone != null; zone = zone.father)
+			level++;
+		return level + getHeight();
+	}
+	
+	private synchronized int getHeight() {
+		long version = structureVersion;
+		if(heightVersion != version) {
+			int result = 0;
+			for(ZMI son : sons)
+				result = Math.max(result, son.getHeight() + 1);
+			height = result;
+			heightVersion = version;
 		}
-		return depth;
+		return height;
 	}
 
 	/**
@@ -182,41 +366,133 @@ public class ZMI implements Cloneable, Serializable {
 			son.printAttributes(stream);
 	}
 
-	public ZMI sonForPath(String path) {
-		String name = ((ValueString)this.attributes.getOrNull("name")).getValue();
-		name = name == null ? "/" : name;
-		if (name.equals(path)) {
-			return this;
+	/**
+	 * Gets the son with the specified name. Sons are indexed by their names when this method is first called. The
+	 * index is then updated when a son is added or removed and when a son changes its name, which it reports to its
+	 * father. If many sons have the same name, the one added first is returned.
+	 * 
+	 * @param name the name of the son
+	 * @return the son or <code>null</code> if there is no son with this name
+	 */
+	public synchronized ZMI getSon(String name) {
+		if(sonsByName == null) {
+			sonsByName = new HashMap<String, ZMI>();
+			namesOfSons = new IdentityHashMap<ZMI, String>();
+			for(ZMI son : sons)
+				indexSon(son);
 		}
-
-		for (ZMI son: getSons()) {
-			ZMI zmi = son.sonForPath(path.substring(path.indexOf("/") + 1, path.length()));
-			if (zmi != null) {
-				return zmi;
-			}
+		return sonsByName.get(name);
+	}
+	
+	// called by the map of attributes after the name of this zone is set or removed
+	void nameChanged() {
+		ZMI father = this.father;
+		if(father != null)
+			father.sonRenamed(this);
+	}
+	
+	private synchronized void sonRenamed(ZMI son) {
+		if(sonsByName != null && namesOfSons.containsKey(son)) {
+			unindexSon(son);
+			indexSon(son);
+		}
+	}
+	
+	// the index is accessed with the lock of this ZMI held
+	private void indexSon(ZMI son) {
+		if(namesOfSons.containsKey(son))
+			return;
+		String name = getName(son);
+		namesOfSons.put(son, name);
+		if(name != null)
+			sonsByName.putIfAbsent(name, son);
+	}
+	
+	private void unindexSon(ZMI son) {
+		String name = namesOfSons.remove(son);
+		if(name != null && sonsByName.get(name) == son) {
+			sonsByName.remove(name);
+			// another son with the same name takes its place
+			for(ZMI other : sons)
+				if(name.equals(namesOfSons.get(other))) {
+					sonsByName.put(name, other);
+					break;
+				}
+		}
+	}
+	
+	private static String getName(ZMI zmi) {
+		Value name = zmi.attributes.getOrNull(NAME);
+		return name instanceof ValueString? ((ValueString)name).getValue() : null;
+	}
+	
+	/**
+	 * Finds a zone by its path relative to this zone, following the names of subsequent sons. For the root zone, it is
+	 * the full path name of the zone. The cost is proportional to the length of the path, not to the size of the tree.
+	 * 
+	 * @param path the path of the zone
+	 * @return the zone or <code>null</code> if there is no such zone
+	 * @see #getSon(String)
+	 */
+	public ZMI sonForPath(PathName path) {
+		ZMI zmi = this;
+		for(String name : path.getComponents()) {
+			zmi = zmi.getSon(name);
+			if(zmi == null)
+				return null;
+		}
+		return zmi;
+	}
+	
+	/**
+	 * Finds a zone by its path relative to this zone. Convenient version of {@link #sonForPath(PathName)}.
+	 * 
+	 * @param path the path of the zone, for instance <code>/uw/violet07</code>; <code>/</code> is this zone
+	 * @return the zone or <code>null</code> if there is no such zone or the <code>path</code> is incorrect
+	 */
+	public ZMI sonForPath(String path) {
+		try {
+			return sonForPath(new PathName(path));
+		} catch(IllegalArgumentException e) {
+			return null;
 		}
-		return null;
 	}
 	
 	/**
 	 * Creates an independent copy of a whole hierarchy. A returned ZMI has the same reference as a father (but the
 	 * father does not have a reference to it as a son). For the root zone, the copy is completely independent, since
-	 * its father is <code>null</code>.
+	 * its father is <code>null</code>. Attributes of every zone are copied in constant time, with their versions.
 	 * 
 	 * @return a deep copy of this ZMI
 	 */
 	@Override
 	public ZMI clone() {
-		ZMI result = new ZMI(father);
-		result.attributes.add(attributes.clone());
+		// the father is set last, so that changes of the copy are not reported to the original tree
+		ZMI result = new ZMI();
+		result.attributes.share(attributes);
+		List<ZMI> sonClones = new ArrayList<ZMI>(sons.size());
 		for(ZMI son : sons) {
 			ZMI sonClone = son.clone();
-			result.sons.add(sonClone);
 			sonClone.father = result;
+			sonClones.add(sonClone);
 		}
+		// a copy-on-write list copies its array on every addition
+		result.sons.addAll(sonClones);
+		result.father = father;
 		return result;
 	}
 	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// older agents serialize sons in an ArrayList, which is not safe for concurrent use
+		if(!(sons instanceof CopyOnWriteArrayList))
+			sons = new CopyOnWriteArrayList<ZMI>(sons);
+		for(ZMI son : sons)
+			son.father = this;
+		attributes.setOwner(this);
+		heightVersion = -1;
+	}
+	
 	/**
 	 * Prints a textual representation of this ZMI. It contains only attributes of this node.
 	 * 
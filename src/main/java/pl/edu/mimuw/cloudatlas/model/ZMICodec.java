@@ -0,0 +1,485 @@
+package pl.edu.mimuw.cloudatlas.model;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import pl.edu.mimuw.cloudatlas.model.Type.PrimaryType;
+
+/**
+ * A compact binary encoding of a ZMI hierarchy, used instead of Java serialization for gossiping. Unlike serialization,
+ * it writes no class descriptors:
+ * <ul>
+ * <li>integers, times and durations are zigzag varints;</li>
+ * <li>every attribute name is written once, later occurrences refer to it by an index;</li>
+ * <li>every value starts with a tag byte, which also marks typed nulls, e.g. an <code>integer</code> containing
+ * <code>null</code>;</li>
+ * <li>collections store their type and a count, followed by their elements.</li>
+ * </ul>
+ * An encoded hierarchy starts with {@link #MAGIC} and {@link #VERSION}. This class is stateless and thread-safe.
+ */
+public final class ZMICodec {
+	/**
+	 * The first byte of every encoded hierarchy. Java serialization streams start with a different byte.
+	 */
+	public static final byte MAGIC = 'Z';
+	public static final byte VERSION = 1;
+
+	private static final int NULL_FLAG = 0x80;
+	// tags of values, ValueQuery is written separately from ValueString, since it is recognized by its class
+	private static final int TAG_NULL = 0;
+	private static final int TAG_BOOLEAN = 1;
+	private static final int TAG_CONTACT = 2;
+	private static final int TAG_DOUBLE = 3;
+	private static final int TAG_DURATION = 4;
+	private static final int TAG_INT = 5;
+	private static final int TAG_LIST = 6;
+	private static final int TAG_SET = 7;
+	private static final int TAG_STRING = 8;
+	private static final int TAG_TIME = 9;
+	private static final int TAG_QUERY = 10;
+
+	private static final PrimaryType[] PRIMARY_TYPES = PrimaryType.values();
+
+	private ZMICodec() {}
+
+	/**
+	 * Checks whether the data starts like an encoded hierarchy.
+	 *
+	 * @param data encoded data
+	 * @return whether the data may be decoded with {@link #decode(byte[])}
+	 */
+	public static boolean isEncoded(byte[] data) {
+		return data.length >= 2 && data[0] == MAGIC;
+	}
+
+	/**
+	 * Encodes the specified ZMI together with all its descendants.
+	 *
+	 * @param zmi the root of the encoded hierarchy
+	 * @return encoded hierarchy
+	 */
+	public static byte[] encode(ZMI zmi) {
+		Encoder encoder = new Encoder();
+		encoder.writeByte(MAGIC);
+		encoder.writeByte(VERSION);
+		encoder.writeZMI(zmi);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encodes a single value.
+	 *
+	 * @param value the value to encode
+	 * @return encoded value, without the magic and version bytes
+	 */
+	public static byte[] encodeValue(Value value) {
+		Encoder encoder = new Encoder();
+		encoder.writeValue(value);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Decodes a hierarchy encoded by {@link #encode(ZMI)}. Fathers of the decoded zones are set, the root has no
+	 * father.
+	 *
+	 * @param data encoded hierarchy
+	 * @return the root of the decoded hierarchy
+	 * @throws IllegalArgumentException if the data is not a correctly encoded hierarchy
+	 */
+	public static ZMI decode(byte[] data) {
+		if(!isEncoded(data))
+			throw new IllegalArgumentException("Data does not contain an encoded ZMI.");
+		if(data[1] != VERSION)
+			throw new IllegalArgumentException("Unsupported version of an encoded ZMI: " + data[1] + ".");
+		Decoder decoder = new Decoder(data, 2);
+		ZMI zmi = decoder.readZMI(null);
+		decoder.checkEnd();
+		return zmi;
+	}
+
+	/**
+	 * Decodes a single value encoded by {@link #encodeValue(Value)}.
+	 *
+	 * @param data encoded value
+	 * @return the decoded value
+	 * @throws IllegalArgumentException if the data is not a correctly encoded value
+	 */
+	public static Value decodeValue(byte[] data) {
+		Decoder decoder = new Decoder(data, 0);
+		Value value = decoder.readValue();
+		decoder.checkEnd();
+		return value;
+	}
+
+	private static class Encoder {
+		private byte[] buffer = new byte[256];
+		private int size = 0;
+		private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+		void writeZMI(ZMI zmi) {
+			AttributesMap attributes = zmi.getAttributes();
+			writeVarInt(attributes.size());
+			for(Entry<Attribute, Value> entry : attributes) {
+				writeName(entry.getKey().getName());
+				writeValue(entry.getValue());
+			}
+			List<ZMI> sons = zmi.getSons();
+			writeVarInt(sons.size());
+			for(ZMI son : sons)
+				writeZMI(son);
+		}
+
+		// a name seen before is written as its index, a new one as the next index followed by the name itself
+		private void writeName(String name) {
+			Integer index = names.get(name);
+			if(index != null)
+				writeVarInt(index);
+			else {
+				writeVarInt(names.size());
+				names.put(name, names.size());
+				writeString(name);
+			}
+		}
+
+		void writeValue(Value value) {
+			int tag = tagOf(value);
+			if(value.isNull() && tag != TAG_NULL) {
+				writeByte(tag | NULL_FLAG);
+				// collections keep their element type even when null
+				if(tag == TAG_LIST || tag == TAG_SET)
+					writeType(((TypeCollection)value.getType()).getElementType());
+				return;
+			}
+			writeByte(tag);
+			switch(tag) {
+				case TAG_NULL:
+					break;
+				case TAG_BOOLEAN:
+					writeByte(((ValueBoolean)value).getValue()? 1 : 0);
+					break;
+				case TAG_CONTACT:
+					ValueContact contact = (ValueContact)value;
+					writeString(contact.getName().getName());
+					byte[] address = contact.getAddress().getAddress();
+					writeByte(address.length);
+					writeBytes(address);
+					break;
+				case TAG_DOUBLE:
+					writeLong(Double.doubleToRawLongBits(((ValueDouble)value).getValue()));
+					break;
+				case TAG_DURATION:
+					writeVarLong(((ValueDuration)value).getValue());
+					break;
+				case TAG_INT:
+					writeVarLong(((ValueInt)value).getValue());
+					break;
+				case TAG_TIME:
+					writeVarLong(((ValueTime)value).getValue());
+					break;
+				case TAG_STRING:
+				case TAG_QUERY:
+					writeString(((ValueString)value).getValue());
+					break;
+				case TAG_LIST:
+				case TAG_SET:
+					writeType(((TypeCollection)value.getType()).getElementType());
+					@SuppressWarnings("unchecked")
+					Collection<Value> elements = (Collection<Value>)value;
+					writeVarInt(elements.size());
+					for(Value element : elements)
+						writeValue(element);
+					break;
+				default:
+					throw new IllegalStateException("Unknown tag: " + tag + ".");
+			}
+		}
+
+		private void writeType(Type type) {
+			writeByte(type.getPrimaryType().ordinal());
+			if(type.isCollection())
+				writeType(((TypeCollection)type).getElementType());
+		}
+
+		private void writeString(String string) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length);
+			writeBytes(bytes);
+		}
+
+		private void writeVarLong(long value) {
+			long zigzag = (value << 1) ^ (value >> 63);
+			while((zigzag & ~0x7fl) != 0) {
+				writeByte((int)((zigzag & 0x7f) | 0x80));
+				zigzag >>>= 7;
+			}
+			writeByte((int)zigzag);
+		}
+
+		private void writeVarInt(int value) {
+			while((value & ~0x7f) != 0) {
+				writeByte((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			writeByte(value);
+		}
+
+		private void writeLong(long value) {
+			for(int shift = 56; shift >= 0; shift -= 8)
+				writeByte((int)(value >>> shift));
+		}
+
+		void writeByte(int value) {
+			ensureCapacity(1);
+			buffer[size++] = (byte)value;
+		}
+
+		private void writeBytes(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		private void ensureCapacity(int extra) {
+			if(size + extra > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	private static class Decoder {
+		private final byte[] data;
+		private int position;
+		private final List<Attribute> names = new ArrayList<Attribute>();
+
+		Decoder(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		ZMI readZMI(ZMI father) {
+			ZMI zmi = new ZMI(father);
+			int count = readCount();
+			for(int i = 0; i < count; ++i) {
+				Attribute name = readName();
+				zmi.getAttributes().add(name, readValue());
+			}
+			int sons = readCount();
+			for(int i = 0; i < sons; ++i)
+				zmi.addSon(readZMI(zmi));
+			return zmi;
+		}
+
+		private Attribute readName() {
+			int index = readVarInt();
+			if(index < names.size())
+				return names.get(index);
+			if(index != names.size())
+				throw new IllegalArgumentException("Reference to an unknown attribute name: " + index + ".");
+			Attribute name = Attribute.of(readString());
+			names.add(name);
+			return name;
+		}
+
+		Value readValue() {
+			int tag = readByte();
+			boolean isNull = (tag & NULL_FLAG) != 0;
+			tag &= ~NULL_FLAG;
+			switch(tag) {
+				case TAG_NULL:
+					return ValueNull.getInstance();
+				case TAG_BOOLEAN:
+					return new ValueBoolean(isNull? null : readByte() != 0);
+				case TAG_CONTACT:
+					if(isNull)
+						return new ValueContact(null, null);
+					PathName name = new PathName(readString());
+					byte[] address = readBytes(readByte());
+					try {
+						return new ValueContact(name, InetAddress.getByAddress(address));
+					} catch(UnknownHostException exception) {
+						throw new IllegalArgumentException("Incorrect address of a contact.", exception);
+					}
+				case TAG_DOUBLE:
+					return new ValueDouble(isNull? null : Double.longBitsToDouble(readLong()));
+				case TAG_DURATION:
+					return new ValueDuration(isNull? null : readVarLong());
+				case TAG_INT:
+					return new ValueInt(isNull? null : readVarLong());
+				case TAG_TIME:
+					return new ValueTime(isNull? null : readVarLong());
+				case TAG_STRING:
+					return new ValueString(isNull? null : readString());
+				case TAG_QUERY:
+					return new ValueQuery(isNull? null : readString());
+				case TAG_LIST: {
+					Type elementType = readType();
+					ValueList list = new ValueList(elementType);
+					if(isNull) {
+						list.setValue(null);
+						return list;
+					}
+					int count = readCount();
+					List<Value> elements = new ArrayList<Value>(count);
+					for(int i = 0; i < count; ++i)
+						elements.add(readValue());
+					list.setValue(elements);
+					return list;
+				}
+				case TAG_SET: {
+					Type elementType = readType();
+					ValueSet set = new ValueSet(elementType);
+					if(isNull) {
+						set.setValue(null);
+						return set;
+					}
+					int count = readCount();
+					Set<Value> elements = new HashSet<Value>();
+					for(int i = 0; i < count; ++i)
+						elements.add(readValue());
+					set.setValue(elements);
+					return set;
+				}
+				default:
+					throw new IllegalArgumentException("Unknown tag of a value: " + tag + ".");
+			}
+		}
+
+		private Type readType() {
+			int ordinal = readByte();
+			if(ordinal >= PRIMARY_TYPES.length)
+				throw new IllegalArgumentException("Unknown type: " + ordinal + ".");
+			PrimaryType primaryType = PRIMARY_TYPES[ordinal];
+			switch(primaryType) {
+				case LIST:
+				case SET:
+					return new TypeCollection(primaryType, readType());
+				case BOOLEAN:
+					return TypePrimitive.BOOLEAN;
+				case CONTACT:
+					return TypePrimitive.CONTACT;
+				case DOUBLE:
+					return TypePrimitive.DOUBLE;
+				case DURATION:
+					return TypePrimitive.DURATION;
+				case INT:
+					return TypePrimitive.INTEGER;
+				case NULL:
+					return TypePrimitive.NULL;
+				case STRING:
+					return TypePrimitive.STRING;
+				case TIME:
+					return TypePrimitive.TIME;
+				default:
+					throw new IllegalArgumentException("Unknown type: " + primaryType + ".");
+			}
+		}
+
+		private String readString() {
+			int length = readCount();
+			String string = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return string;
+		}
+
+		private long readVarLong() {
+			long zigzag = 0;
+			for(int shift = 0;; shift += 7) {
+				if(shift > 63)
+					throw new IllegalArgumentException("Malformed variable-length integer.");
+				int b = readByte();
+				zigzag |= (long)(b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+					break;
+			}
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		private int readVarInt() {
+			int value = 0;
+			for(int shift = 0;; shift += 7) {
+				if(shift > 28)
+					throw new IllegalArgumentException("Malformed variable-length integer.");
+				int b = readByte();
+				value |= (b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+		}
+
+		// a count of following items, which cannot exceed the number of remaining bytes
+		private int readCount() {
+			int count = readVarInt();
+			if(count < 0 || count > data.length - position)
+				throw new IllegalArgumentException("Incorrect count: " + count + ".");
+			return count;
+		}
+
+		private long readLong() {
+			long value = 0;
+			for(int i = 0; i < 8; ++i)
+				value = (value << 8) | readByte();
+			return value;
+		}
+
+		private byte[] readBytes(int length) {
+			if(length > data.length - position)
+				throw new IllegalArgumentException("Unexpected end of an encoded ZMI.");
+			byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+			position += length;
+			return bytes;
+		}
+
+		private int readByte() {
+			if(position >= data.length)
+				throw new IllegalArgumentException("Unexpected end of an encoded ZMI.");
+			return data[position++] & 0xff;
+		}
+
+		void checkEnd() {
+			if(position != data.length)
+				throw new IllegalArgumentException("Unexpected data after an encoded ZMI.");
+		}
+	}
+
+	private static int tagOf(Value value) {
+		if(value instanceof ValueQuery)
+			return TAG_QUERY;
+		switch(value.getType().getPrimaryType()) {
+			case BOOLEAN:
+				return TAG_BOOLEAN;
+			case CONTACT:
+				return TAG_CONTACT;
+			case DOUBLE:
+				return TAG_DOUBLE;
+			case DURATION:
+				return TAG_DURATION;
+			case INT:
+				return TAG_INT;
+			case LIST:
+				return TAG_LIST;
+			case NULL:
+				return TAG_NULL;
+			case SET:
+				return TAG_SET;
+			case STRING:
+				return TAG_STRING;
+			case TIME:
+				return TAG_TIME;
+			default:
+				throw new IllegalArgumentException("Unsupported type: " + value.getType() + ".");
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package pl.edu.mimuw.cloudatlas.model;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Checks that {@link ZMICodec} decodes every value it encodes to an equal one. Values of every primitive type, typed
+ * nulls, and lists and sets of every type, empty, null and nested, are encoded one by one and as attributes of a
+ * hierarchy. Run with:
+ * <pre>
+ * java -cp target/classes pl.edu.mimuw.cloudatlas.model.ZMICodecCheck
+ * </pre>
+ * The check exits with status 1 at the first value decoded differently.
+ */
+public class ZMICodecCheck {
+	private static final TypePrimitive[] PRIMITIVES = {
+		TypePrimitive.BOOLEAN, TypePrimitive.CONTACT, TypePrimitive.DOUBLE, TypePrimitive.DURATION,
+		TypePrimitive.INTEGER, TypePrimitive.NULL, TypePrimitive.STRING, TypePrimitive.TIME
+	};
+
+	public static void main(String[] args) throws Exception {
+		List<Value> values = createValues();
+		for(Value value : values) {
+			Value decoded = ZMICodec.decodeValue(ZMICodec.encodeValue(value));
+			if(!ZMIFixture.same(value, decoded))
+				fail(value.getType() + " " + value + " decoded as " + decoded.getType() + " " + decoded);
+		}
+
+		ZMI root = ZMIFixture.createHierarchy();
+		ZMI zone = new ZMI(root);
+		root.addSon(zone);
+		for(int i = 0; i < values.size(); ++i)
+			zone.getAttributes().add("value" + i, values.get(i));
+		ZMI decoded = ZMICodec.decode(ZMICodec.encode(root));
+		String difference = ZMIFixture.compare(root, decoded, "/");
+		if(difference != null)
+			fail(difference);
+		if(decoded.getFather() != null || decoded.getSons().get(1).getFather() != decoded)
+			fail("fathers are not set");
+		System.out.println("OK: " + values.size() + " values");
+		System.exit(0);
+	}
+
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+	// values of every primitive type including typed nulls, followed by collections of them
+	private static List<Value> createValues() throws Exception {
+		PathName path = new PathName("/uw/violet07");
+		List<Value> primitives = Arrays.<Value>asList(
+				new ValueBoolean(true), new ValueBoolean(false), new ValueBoolean(null),
+				new ValueContact(path, InetAddress.getByAddress(new byte[] {10, 1, 1, 10})),
+				new ValueContact(path, InetAddress.getByName("::1")), new ValueContact(null, null),
+				new ValueDouble(-1.5), new ValueDouble(Double.NaN), new ValueDouble(Double.NEGATIVE_INFINITY),
+				new ValueDouble(null),
+				new ValueDuration(-1l), new ValueDuration(1, 2, 3, 4, 5), new ValueDuration((Long)null),
+				new ValueInt(0l), new ValueInt(Long.MIN_VALUE), new ValueInt(Long.MAX_VALUE), new ValueInt(null),
+				ValueNull.getInstance(),
+				new ValueString(""), new ValueString("za\u017c\u00f3\u0142\u0107 \u20ac \ud83d\ude00"), new ValueString(null),
+				new ValueQuery("SELECT sum(num_cores) AS num_cores"),
+				new ValueTime(0l), new ValueTime(-1l), new ValueTime("2012/11/09 20:10:17.342"),
+				new ValueTime((Long)null));
+
+		List<Value> values = new ArrayList<Value>(primitives);
+		List<Value> collections = new ArrayList<Value>();
+		// lists whose hash codes are defined, since none of their elements is null
+		List<ValueList> hashable = new ArrayList<ValueList>();
+		for(TypePrimitive type : PRIMITIVES) {
+			List<Value> elements = new ArrayList<Value>();
+			List<Value> nonNull = new ArrayList<Value>();
+			for(Value value : primitives)
+				if(value.getType().getPrimaryType() == type.getPrimaryType()) {
+					elements.add(value);
+					if(!value.isNull())
+						nonNull.add(value);
+				}
+			collections.add(new ValueList(elements, type));
+			collections.add(new ValueSet(new HashSet<Value>(nonNull), type));
+			collections.add(new ValueList(type));
+			collections.add(new ValueSet(type));
+			ValueList noList = new ValueList(type);
+			noList.setValue(null);
+			collections.add(noList);
+			ValueSet noSet = new ValueSet(type);
+			noSet.setValue(null);
+			collections.add(noSet);
+			hashable.add(new ValueList(nonNull, type));
+		}
+		values.addAll(collections);
+
+		// every collection nested in a list, and lists nested in sets, which are nested in lists again
+		for(Value collection : collections)
+			values.add(new ValueList(Arrays.asList(collection, collection), collection.getType()));
+		for(ValueList list : hashable) {
+			ValueSet set = new ValueSet(new HashSet<Value>(Arrays.<Value>asList(list,
+					new ValueList(((TypeCollection)list.getType()).getElementType()))), list.getType());
+			values.add(set);
+			values.add(new ValueList(Arrays.<Value>asList(set), set.getType()));
+		}
+		return values;
+	}
+}
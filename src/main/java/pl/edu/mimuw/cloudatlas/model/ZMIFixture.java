@@ -0,0 +1,151 @@
+package pl.edu.mimuw.cloudatlas.model;
+
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A hierarchy of zones holding values of every type, used to check the encodings of ZMIs. This class uses only
+ * methods which the previous version of the agent had, so it also writes the file of serialized ZMI read by
+ * {@link ZMISerializationCheck}, when compiled and run there:
+ * <pre>
+ * java -cp target/classes pl.edu.mimuw.cloudatlas.model.ZMIFixture tests/zmi.ser
+ * </pre>
+ */
+public class ZMIFixture {
+	public static void main(String[] args) throws Exception {
+		try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(args[0]))) {
+			out.writeObject(createHierarchy());
+		}
+	}
+
+	/**
+	 * Builds a hierarchy of three zones holding values of every type, nulls of every type and nested collections.
+	 *
+	 * @return the root of the hierarchy
+	 */
+	public static ZMI createHierarchy() throws Exception {
+		ZMI root = new ZMI();
+		root.getAttributes().add("level", new ValueInt(0l));
+		root.getAttributes().add("name", new ValueString(null));
+		root.getAttributes().add("owner", new ValueString("/uw/violet07"));
+
+		ZMI uw = new ZMI(root);
+		root.addSon(uw);
+		uw.getAttributes().add("level", new ValueInt(1l));
+		uw.getAttributes().add("name", new ValueString("uw"));
+		uw.getAttributes().add("&cores", new ValueList(Arrays.<Value>asList(
+				new ValueQuery("SELECT sum(num_cores) AS num_cores")), TypePrimitive.STRING));
+
+		ZMI violet = new ZMI(uw);
+		uw.addSon(violet);
+		AttributesMap attributes = violet.getAttributes();
+		attributes.add("level", new ValueInt(2l));
+		attributes.add("name", new ValueString("violet07"));
+		attributes.add("is_up", new ValueBoolean(true));
+		attributes.add("contact", new ValueContact(new PathName("/uw/violet07"),
+				InetAddress.getByAddress(new byte[] {10, 1, 1, 10})));
+		attributes.add("cpu_load", new ValueDouble(0.25));
+		attributes.add("uptime", new ValueDuration(3l, 4l, 5l, 6l, 7l));
+		attributes.add("num_cores", new ValueInt(-3l));
+		attributes.add("timestamp", new ValueTime("2012/11/09 20:10:17.342"));
+		attributes.add("no_boolean", new ValueBoolean(null));
+		attributes.add("no_contact", new ValueContact(null, null));
+		attributes.add("no_double", new ValueDouble(null));
+		attributes.add("no_duration", new ValueDuration((Long)null));
+		attributes.add("no_int", new ValueInt(null));
+		attributes.add("no_string", new ValueString(null));
+		attributes.add("no_time", new ValueTime((Long)null));
+		attributes.add("null", ValueNull.getInstance());
+
+		ValueList ints = new ValueList(Arrays.<Value>asList(new ValueInt(1l), new ValueInt(null), new ValueInt(3l)),
+				TypePrimitive.INTEGER);
+		attributes.add("ints", ints);
+		attributes.add("no_strings", new ValueList(TypePrimitive.STRING));
+		ValueList noList = new ValueList(TypePrimitive.DOUBLE);
+		noList.setValue(null);
+		attributes.add("no_list", noList);
+		attributes.add("names", new ValueSet(new HashSet<Value>(Arrays.<Value>asList(new ValueString("violet07"),
+				new ValueString("khaki31"))), TypePrimitive.STRING));
+		ValueSet noSet = new ValueSet(TypePrimitive.CONTACT);
+		noSet.setValue(null);
+		attributes.add("no_set", noSet);
+		Type intList = new TypeCollection(Type.PrimaryType.LIST, TypePrimitive.INTEGER);
+		attributes.add("nested", new ValueList(Arrays.<Value>asList(ints, new ValueList(TypePrimitive.INTEGER)),
+				intList));
+		attributes.add("nested_set", new ValueSet(new HashSet<Value>(Arrays.<Value>asList(
+				new ValueList(Arrays.<Value>asList(new ValueTime(0l)), TypePrimitive.TIME))),
+				new TypeCollection(Type.PrimaryType.LIST, TypePrimitive.TIME)));
+		return root;
+	}
+
+	/**
+	 * Compares two hierarchies zone by zone.
+	 *
+	 * @return a description of the first difference or <code>null</code> if the hierarchies are the same
+	 */
+	public static String compare(ZMI expected, ZMI actual, String zone) {
+		int size = 0;
+		for(Entry<Attribute, Value> entry : expected.getAttributes()) {
+			Value value = actual.getAttributes().getOrNull(entry.getKey());
+			if(value == null || !same(entry.getValue(), value))
+				return zone + ": " + entry.getKey() + " is " + value + ", expected " + entry.getValue();
+			++size;
+		}
+		for(Iterator<Entry<Attribute, Value>> iterator = actual.getAttributes().iterator(); iterator.hasNext();) {
+			iterator.next();
+			--size;
+		}
+		if(size != 0)
+			return zone + ": unexpected attributes";
+		List<ZMI> expectedSons = expected.getSons();
+		List<ZMI> actualSons = actual.getSons();
+		if(expectedSons.size() != actualSons.size())
+			return zone + ": " + actualSons.size() + " sons, expected " + expectedSons.size();
+		for(int i = 0; i < expectedSons.size(); ++i) {
+			String difference = compare(expectedSons.get(i), actualSons.get(i), zone + i + "/");
+			if(difference != null)
+				return difference;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether two values have the same type and contents. Elements of sets are matched regardless of order.
+	 */
+	public static boolean same(Value expected, Value actual) {
+		if(!expected.getType().toString().equals(actual.getType().toString()) || expected.getClass() != actual.getClass()
+				|| expected.isNull() != actual.isNull())
+			return false;
+		if(expected.isNull())
+			return true;
+		if(expected instanceof ValueList) {
+			List<Value> expectedList = ((ValueList)expected).getValue();
+			List<Value> actualList = ((ValueList)actual).getValue();
+			if(expectedList.size() != actualList.size())
+				return false;
+			for(int i = 0; i < expectedList.size(); ++i)
+				if(!same(expectedList.get(i), actualList.get(i)))
+					return false;
+			return true;
+		}
+		if(expected instanceof ValueSet) {
+			if(((ValueSet)expected).size() != ((ValueSet)actual).size())
+				return false;
+			for(Value element : (ValueSet)expected) {
+				boolean found = false;
+				for(Value other : (ValueSet)actual)
+					found |= same(element, other);
+				if(!found)
+					return false;
+			}
+			return true;
+		}
+		return expected.toString().equals(actual.toString());
+	}
+}
@@ -0,0 +1,94 @@
+package pl.edu.mimuw.cloudatlas.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map.Entry;
+
+/**
+ * Checks that ZMIs gossiped by agents of the previous version, which sent them in Java serialization, are still read
+ * correctly, and that a ZMI serialized now is read back unchanged, together with versions of its attributes. Run from
+ * the root of the project with an optional path of the serialized hierarchy:
+ * <pre>
+ * java -cp target/classes pl.edu.mimuw.cloudatlas.model.ZMISerializationCheck tests/zmi.ser
+ * </pre>
+ * The file holds the hierarchy built by {@link ZMIFixture#createHierarchy()}, serialized by that version. A file
+ * written by this version is read by the previous one as well. The check exits with status 1 if a hierarchy read
+ * differs from the one built.
+ */
+public class ZMISerializationCheck {
+	public static void main(String[] args) throws Exception {
+		String path = args.length > 0? args[0] : "tests/zmi.ser";
+		ZMI read;
+		try(ObjectInputStream in = new ObjectInputStream(new FileInputStream(path))) {
+			read = (ZMI)in.readObject();
+		}
+		String difference = ZMIFixture.compare(ZMIFixture.createHierarchy(), read, "/");
+		if(difference == null)
+			difference = checkFathers(read);
+		// the previous version did not keep versions
+		if(difference == null)
+			difference = compareVersions(null, read);
+		if(difference == null)
+			difference = checkRoundTrip();
+		if(difference != null) {
+			System.out.println("FAILED: " + difference);
+			System.exit(1);
+		}
+		System.out.println("OK: " + path);
+	}
+
+	// attributes are written from and read into persistent maps, which are deeper for zones with many attributes
+	private static String checkRoundTrip() throws Exception {
+		ZMI root = ZMIFixture.createHierarchy();
+		ZMI wide = new ZMI(root);
+		root.addSon(wide);
+		for(int i = 0; i < 1000; ++i)
+			wide.getAttributes().add("attribute" + i, new ValueInt((long)i));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(root);
+		}
+		ZMI read;
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			read = (ZMI)in.readObject();
+		}
+		String difference = ZMIFixture.compare(root, read, "/");
+		if(difference == null)
+			difference = checkFathers(read);
+		if(difference == null)
+			difference = compareVersions(root, read);
+		return difference == null? null : "written now, " + difference;
+	}
+
+	// versions of all attributes must be the same as in the expected hierarchy, or 0 if it is null
+	private static String compareVersions(ZMI expected, ZMI actual) {
+		for(Entry<Attribute, Value> entry : actual.getAttributes()) {
+			long version = expected == null? 0 : expected.getAttributes().getVersion(entry.getKey());
+			if(actual.getAttributes().getVersion(entry.getKey()) != version)
+				return entry.getKey() + " has version " + actual.getAttributes().getVersion(entry.getKey())
+						+ ", expected " + version;
+		}
+		for(int i = 0; i < actual.getSons().size(); ++i) {
+			String difference = compareVersions(expected == null? null : expected.getSons().get(i),
+					actual.getSons().get(i));
+			if(difference != null)
+				return difference;
+		}
+		return null;
+	}
+
+	// sons of a deserialized ZMI must know their father, which is not serialized
+	private static String checkFathers(ZMI zmi) {
+		for(ZMI son : zmi.getSons()) {
+			if(son.getFather() != zmi)
+				return "a son of " + zmi.getAttributes().getOrNull("name") + " has no father";
+			String difference = checkFathers(son);
+			if(difference != null)
+				return difference;
+		}
+		return null;
+	}
+}
@@ -1,26 +1,44 @@
 package pl.edu.mimuw.cloudatlas.modules.communication;
 
+import pl.edu.mimuw.cloudatlas.helpers.Helpers;
+
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class ComMessage {
-    public ArrayList<Double> timeStamps;
+    public ArrayList<Long> timeStamps;
     public String id;
-    public ArrayList<Double> data;
+    public byte[] data;
+    // Format in which the sender expects replies, see WireFormat
+    public byte version = WireFormat.LEGACY;
+    // Set for received messages
+    public InetAddress sender;
 
     protected ComMessage() {
 
     }
 
     public ComMessage(HashMap<String, Object> json) {
-        this.timeStamps = (ArrayList<Double>) json.get("ts");
+        this.timeStamps = new ArrayList<>();
+        for (Double timeStamp : (ArrayList<Double>) json.get("ts")) {
+            this.timeStamps.add(timeStamp.longValue());
+        }
         this.id = (String) json.get("id");
-        this.data = (ArrayList<Double>) json.get("data");
+        this.data = Helpers.arrayToBytes((ArrayList<Double>) json.get("data"));
+    }
+
+    // Offset of the clock of the replying agent relative to the local one, like NTP does, 0 if not all times are known
+    public long calculateClockOffset() {
+        if (timeStamps.size() >= 4) {
+            return ((timeStamps.get(1) - timeStamps.get(0)) + (timeStamps.get(2) - timeStamps.get(3))) / 2;
+        }
+        return 0;
     }
 
     public Long calculateRoundTrip() {
-        if (timeStamps.size() < 4) {
-            return (timeStamps.get(3).longValue() - timeStamps.get(0).longValue())- (timeStamps.get(2).longValue() - timeStamps.get(1).longValue());
+        if (timeStamps.size() >= 4) {
+            return (timeStamps.get(3) - timeStamps.get(0)) - (timeStamps.get(2) - timeStamps.get(1));
         }
         return 0l;
     }
@@ -1,24 +1,24 @@
 package pl.edu.mimuw.cloudatlas.modules.communication;
 
-import pl.edu.mimuw.cloudatlas.helpers.Helpers;
-
-import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.HashMap;
 
 public class CommunicationMessage extends ComMessage {
     public Integer number;
     public Integer totalNumber;
+    // The message is compressed as a whole, see WireFormat
+    public boolean compressed;
+
+    CommunicationMessage() {
+
+    }
 
     public CommunicationMessage(HashMap<String, Object> json) {
-        this.timeStamps = (ArrayList<Double>) json.get("ts");
-        this.id = (String) json.get("id");
-        this.data = (ArrayList<Double>) json.get("data");
+        super(json);
         this.number = ((Double) json.get("pn")).intValue();
         this.totalNumber = ((Double) json.get("tn")).intValue();
     }
 
     public byte[] getDataBytes() {
-        return Helpers.arrayToBytes(this.data);
+        return this.data;
     }
 }
@@ -1,119 +1,283 @@
 package pl.edu.mimuw.cloudatlas.modules.communication;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
 import pl.edu.mimuw.cloudatlas.helpers.Helpers;
 import pl.edu.mimuw.cloudatlas.interpreter.Main;
 import pl.edu.mimuw.cloudatlas.model.ZMI;
+import pl.edu.mimuw.cloudatlas.modules.gossip.GossipMessage;
+import pl.edu.mimuw.cloudatlas.modules.timer.TimerModule;
 
-import javax.xml.crypto.Data;
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Receives datagrams sent by CommunicationClient. A single selector thread only reads datagrams into pooled buffers
+ * and hands them over to a bounded pool of workers, which decode them, reply and assemble messages. When all the
+ * buffers are in use or the queue of the workers is full, a datagram is dropped and counted, instead of the receive
+ * thread falling behind and the kernel dropping datagrams silently. Senders retry in the next gossip round anyway.
+ *
+ * Packets of a message are marked in a bitmap as they arrive, duplicates are ignored. Every message has a timeout in
+ * the TimerModule of the agent: missing packets of a message which stopped arriving are requested with NACKs, so a
+ * lost packet is sent again instead of the whole message, and a message which stays incomplete is removed.
+ */
 public class CommunicationServer {
+    private static final int DEFAULT_QUEUE = 256;
+    // Messages are removed after this time without a packet, completed ones are kept until then to ignore duplicates
+    private static final long ASSEMBLY_TIMEOUT = 10000;
+    // Missing packets are requested after this time without a packet, at most MAX_NACKS times
+    private static final long NACK_DELAY = 200;
+    private static final int MAX_NACKS = 5;
+    // Largest accepted number of packets of a message
+    private static final int MAX_PACKETS = 1 << 16;
 
-    private HashMap<String, List<CommunicationMessage>> receivedPackets = new HashMap<>();
-    private ArrayList<Timer> timeoutTimers = new ArrayList<>();
+    private final Map<String, MessageAssembly> assemblies = new ConcurrentHashMap<>();
+    private final TimerModule timer;
+    // Assembled messages change the hierarchy, so they are delivered one at a time
+    private final Object deliveryLock = new Object();
+
+    private final int workers;
+    private final int queueCapacity;
+    // Largest received datagram, announced to senders in handshake replies
+    private final int maxPacket;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private ThreadPoolExecutor executor;
+    private DatagramChannel channel;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public CommunicationServer() {
+        this(WireFormat.DEFAULT_MTU);
+    }
+
+    public CommunicationServer(int maxPacket) {
+        this(maxPacket, new TimerModule());
+    }
+
+    public CommunicationServer(int maxPacket, TimerModule timer) {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()), DEFAULT_QUEUE, maxPacket, timer);
+    }
+
+    /**
+     * @param workers number of threads decoding datagrams
+     * @param queueCapacity number of datagrams waiting for a worker, more are dropped
+     * @param maxPacket size of receive buffers, not less than WireFormat.MAX_PACKET
+     * @param timer timer of the agent, running the timeouts of messages
+     */
+    public CommunicationServer(int workers, int queueCapacity, int maxPacket, TimerModule timer) {
+        this.timer = timer;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.maxPacket = Math.max(maxPacket, WireFormat.MAX_PACKET);
+        // A buffer for every datagram being decoded or waiting in the queue
+        this.buffers = new ArrayBlockingQueue<>(workers + queueCapacity);
+        for (int i = 0; i < workers + queueCapacity; i++) {
+            buffers.add(ByteBuffer.allocateDirect(this.maxPacket));
+        }
+    }
 
     public void start(Integer portNumber) {
-        Thread t = new Thread(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        DatagramSocket serverSocket = null;
-                        try {
-                            serverSocket = new DatagramSocket(portNumber);
-                            while(true)
-                            {
-                                byte[] receiveData = new byte[1024];
-                                byte[] sendData = new byte[1024];
-
-                                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                                serverSocket.receive(receivePacket);
-                                Double receivedTime = Helpers.generateTimestamp();
-                                String sentence = new String(receivePacket.getData(), receivePacket.getOffset(), receivePacket.getLength());
-                                Type type = new TypeToken<HashMap<String, Object>>(){}.getType();
-                                Gson gson = new Gson();
-                                HashMap<String, Object> map = gson.fromJson(sentence, type);
-                                ComMessage message = new ComMessage(map);
-                                if (!message.id.equals("0")) {
-                                    CommunicationMessage msg = new CommunicationMessage(map);
-                                    message = msg;
-                                    receiveMessage(msg);
-                                }
-                                message.timeStamps.add(receivedTime);
-//                                System.out.println("RECEIVED: " + sentence);
-                                InetAddress IPAddress = receivePacket.getAddress();
-                                int port = receivePacket.getPort();
-                                message.timeStamps.add(Helpers.generateTimestamp());
-                                map.put("ts", message.timeStamps);
-                                sendData = gson.toJson(map).getBytes();
-                                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
-                                try {
-                                    serverSocket.send(sendPacket);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        } catch (SocketException e) {
-                            e.printStackTrace();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "server-worker-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        Thread t = new Thread(() -> {
+            try (Selector selector = Selector.open()) {
+                channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(portNumber));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                while (true) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    receiveAll();
                 }
-        );
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "server-selector");
         t.start();
     }
 
-    private void receiveMessage(CommunicationMessage message) {
-        if (receivedPackets.containsKey(message.id)) {
-            List packets = receivedPackets.get(message.id);
-            packets.add(message);
-            if (packets.size() == message.totalNumber) {
-                System.out.println("Packet removed: id = " + message.id);
-                assemblePackets(receivedPackets.get(message.id));
-                receivedPackets.remove(message.id);
+    // Number of datagrams received, including the dropped ones
+    public long getReceived() {
+        return received.get();
+    }
+
+    // Number of datagrams dropped because the workers could not keep up
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                // No buffer to read into, take the datagram out of the socket anyway
+                if (channel.receive(ByteBuffer.allocate(0)) == null) {
+                    return;
+                }
+                received.incrementAndGet();
+                drop();
+                continue;
+            }
+            buffer.clear();
+            SocketAddress address = channel.receive(buffer);
+            if (address == null) {
+                buffers.add(buffer);
                 return;
             }
+            long receivedTime = System.currentTimeMillis();
+            received.incrementAndGet();
+            buffer.flip();
+            try {
+                executor.execute(() -> handle(buffer, (InetSocketAddress) address, receivedTime));
+            } catch (RejectedExecutionException e) {
+                buffers.add(buffer);
+                drop();
+            }
+        }
+    }
+
+    private void drop() {
+        long count = dropped.incrementAndGet();
+        // Do not flood the output when overloaded
+        if (Long.bitCount(count) == 1) {
+            System.out.println("Server saturated, datagrams dropped: " + count + " of " + received.get());
         }
-        else {
-            List<CommunicationMessage> messages = new ArrayList<>();
-            messages.add(message);
-            receivedPackets.put(message.id, messages);
-            Timer timer = new Timer();
-            // Remove packets in case they never got assembled after 10 seconds
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    if (receivedPackets.containsKey(message.id)) {
-                        receivedPackets.remove(message.id);
-                        System.out.println("Packet dropped: id = " + message.id);
-                    }
+    }
+
+    private void handle(ByteBuffer buffer, InetSocketAddress address, long receivedTime) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        buffers.add(buffer);
+
+        ComMessage message;
+        try {
+            message = WireFormat.decode(bytes, 0, bytes.length);
+        } catch (RuntimeException e) {
+            System.out.println("Malformed datagram dropped: " + e.getMessage());
+            return;
+        }
+        if (message instanceof NackMessage) {
+            return;
+        }
+        message.sender = address.getAddress();
+        message.timeStamps.add(receivedTime);
+        message.timeStamps.add(System.currentTimeMillis());
+        try {
+            byte[] reply = message instanceof CommunicationMessage ? WireFormat.encodeReply(message)
+                    : WireFormat.encodeHandshakeReply(message, maxPacket);
+            channel.send(ByteBuffer.wrap(reply), address);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (message instanceof CommunicationMessage) {
+            receiveMessage((CommunicationMessage) message, address);
+        }
+    }
+
+    private void receiveMessage(CommunicationMessage message, InetSocketAddress address) {
+        if (message.totalNumber < 1 || message.totalNumber > MAX_PACKETS || message.number < 1
+                || message.number > message.totalNumber) {
+            System.out.println("Malformed packet dropped: id = " + message.id);
+            return;
+        }
+        boolean[] created = new boolean[1];
+        MessageAssembly assembly = assemblies.computeIfAbsent(message.id, id -> {
+            created[0] = true;
+            return new MessageAssembly(id, message.totalNumber, address, message.version, message.compressed);
+        });
+        if (created[0]) {
+            schedule(assembly, NACK_DELAY);
+        }
+        if (assembly.totalNumber != message.totalNumber || assembly.compressed != message.compressed) {
+            System.out.println("Malformed packet dropped: id = " + message.id);
+            return;
+        }
+        if (assembly.add(message)) {
+            System.out.println("Packet removed: id = " + message.id);
+            byte[] bytes = assembly.assemble();
+            if (assembly.compressed) {
+                try {
+                    bytes = WireFormat.decompress(bytes);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Malformed message dropped: id = " + message.id + ", " + e.getMessage());
+                    return;
                 }
-            }, 10000);
+            }
+            assemblePackets(bytes, message.id, message.sender);
         }
     }
 
-    private void assemblePackets(List<CommunicationMessage> packets) {
-        packets.sort(Comparator.comparingInt(p -> p.number));
-        ArrayList<Double> dataList = new ArrayList<>();
-        for (CommunicationMessage l: packets) {
-            dataList.addAll(l.data);
+    private void schedule(MessageAssembly assembly, long delay) {
+        timer.schedule("assembly-" + assembly.id, delay, () -> {
+            expire(assembly);
+            return null;
+        });
+    }
+
+    // Called when the timeout of a message passes, packets which arrived meanwhile only postpone the next one
+    private void expire(MessageAssembly assembly) {
+        long idle = System.currentTimeMillis() - assembly.getLastActivity();
+        if (idle >= ASSEMBLY_TIMEOUT) {
+            assemblies.remove(assembly.id, assembly);
+            if (!assembly.isComplete()) {
+                System.out.println("Packet dropped: id = " + assembly.id);
+            }
+            return;
         }
-        if (dataList.size() > 0) {
-            byte[] bytes = Helpers.arrayToBytes(dataList);
-            ZMI zmi = Helpers.bytesToZMI(bytes);
-            System.out.println("ZMI assambled: name = " + zmi.getAttributes().get("name"));
-            Main.updateZMIAttributes(zmi);
+        long delay = ASSEMBLY_TIMEOUT - idle;
+        // Agents of the previous version do not understand NACKs
+        if (!assembly.isComplete() && assembly.getNackCount() < MAX_NACKS && assembly.version != WireFormat.LEGACY) {
+            if (idle >= NACK_DELAY) {
+                NackMessage nack = new NackMessage(assembly.id, assembly.nack());
+                try {
+                    channel.send(ByteBuffer.wrap(WireFormat.encodeNack(nack)), assembly.sender);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                delay = NACK_DELAY;
+            } else {
+                delay = NACK_DELAY - idle;
+            }
+        }
+        schedule(assembly, delay);
+    }
+
+    private void assemblePackets(byte[] bytes, String id, InetAddress sender) {
+        if (bytes.length > 0) {
+            synchronized (deliveryLock) {
+                if (GossipMessage.isGossip(bytes)) {
+                    Main.receiveGossip(bytes, sender);
+                    return;
+                }
+                ZMI zmi = Helpers.bytesToZMI(bytes);
+                if (zmi == null) {
+                    System.out.println("Malformed message dropped: id = " + id);
+                    return;
+                }
+                System.out.println("ZMI assambled: name = " + zmi.getAttributes().get("name"));
+                Main.updateZMIAttributes(zmi, CommunicationClient.getClockOffset(sender));
+            }
         }
 
     }
 }
-
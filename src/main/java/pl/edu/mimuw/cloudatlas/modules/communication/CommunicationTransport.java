@@ -0,0 +1,378 @@
+package pl.edu.mimuw.cloudatlas.modules.communication;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sending side of the communication of an agent. All the datagrams are sent from one socket and a single thread
+ * receives all the replies, matching handshake replies by the address of the peer and acknowledgements of packets by
+ * the message id and packet number. Peers are remembered with their address, format and round trip time, so an agent
+ * gossiping with a peer again does not resolve its name nor repeat the handshake.
+ * Packets of a sent message are kept until acknowledged, so the ones a receiver requests with a NACK are sent again.
+ * Packets are as large as both the MTU of this agent and the receive buffers announced by the peer allow, and messages
+ * are compressed for peers accepting it when that saves space.
+ */
+public class CommunicationTransport {
+    public static final int PORT = 9876;
+
+    private static final long HANDSHAKE_TIMEOUT = 4000;
+    private static final int HANDSHAKE_TRIES = 3;
+    // A peer is handshaken again after this time, it may have been restarted in another version
+    private static final long PEER_TIMEOUT = 60000;
+    // Packets not acknowledged in this time are considered lost and not sent again
+    private static final long ACK_TIMEOUT = 10000;
+    private static final int RECEIVE_TIMEOUT = 1000;
+    // Number of recent clock samples of a peer, the one with the shortest round trip is the most accurate
+    private static final int CLOCK_SAMPLES = 8;
+
+    public static class Peer {
+        public final String name;
+        public final InetAddress address;
+        // Format understood by the peer, negotiated by the handshake
+        private volatile byte version = WireFormat.LEGACY;
+        // Smoothed round trip time in milliseconds, -1 if not measured yet
+        private volatile long roundTrip = -1;
+        private volatile long handshakeTime;
+        // Largest datagram sent to the peer
+        private volatile int maxPacket = WireFormat.MAX_PACKET;
+        private volatile boolean compression = false;
+        // Recent offsets of the clock of the peer and round trip times of their measurements
+        private final long[] offsets = new long[CLOCK_SAMPLES];
+        private final long[] offsetRoundTrips = new long[CLOCK_SAMPLES];
+        private int samples = 0;
+        private volatile long clockOffset = 0;
+
+        private Peer(String name, InetAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        public byte getVersion() {
+            return version;
+        }
+
+        public long getRoundTrip() {
+            return roundTrip;
+        }
+
+        public int getMaxPacket() {
+            return maxPacket;
+        }
+
+        // Offset in milliseconds of the clock of the peer relative to the local clock, 0 if not measured yet
+        public long getClockOffset() {
+            return clockOffset;
+        }
+
+        private synchronized void update(ComMessage reply) {
+            if (reply.timeStamps.size() < 4) {
+                return;
+            }
+            long sample = reply.calculateRoundTrip();
+            // Smoothed like TCP does, a single delayed reply does not change much
+            roundTrip = roundTrip < 0 ? sample : (7 * roundTrip + sample) / 8;
+            // An offset is accurate up to half of the round trip of its measurement, so like the clock filter of NTP
+            // the one measured with the shortest round trip among the recent ones is used
+            offsets[samples % CLOCK_SAMPLES] = reply.calculateClockOffset();
+            offsetRoundTrips[samples % CLOCK_SAMPLES] = sample;
+            samples++;
+            int best = 0;
+            for (int i = 1; i < Math.min(samples, CLOCK_SAMPLES); i++) {
+                if (offsetRoundTrips[i] < offsetRoundTrips[best]) {
+                    best = i;
+                }
+            }
+            clockOffset = offsets[best];
+        }
+    }
+
+    private static class PendingAck {
+        final Peer peer;
+        final long sentTime;
+
+        PendingAck(Peer peer, long sentTime) {
+            this.peer = peer;
+            this.sentTime = sentTime;
+        }
+    }
+
+    // Packets of a message not acknowledged yet
+    private static class OutgoingMessage {
+        final Peer peer;
+        final CommunicationMessage[] packets;
+        int unacknowledged;
+        volatile long lastSent;
+
+        OutgoingMessage(Peer peer, CommunicationMessage[] packets) {
+            this.peer = peer;
+            this.packets = packets;
+            this.unacknowledged = packets.length;
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final int mtu;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<InetAddress, CompletableFuture<ComMessage>> handshakes = new ConcurrentHashMap<>();
+    private final Map<String, PendingAck> pendingAcks = new ConcurrentHashMap<>();
+    private final Map<String, OutgoingMessage> outgoing = new ConcurrentHashMap<>();
+    private long lastPurge = System.currentTimeMillis();
+
+    public CommunicationTransport() throws SocketException {
+        this(WireFormat.DEFAULT_MTU);
+    }
+
+    /**
+     * @param mtu largest datagram sent, datagrams of WireFormat.MAX_PACKET are always allowed
+     */
+    public CommunicationTransport(int mtu) throws SocketException {
+        this.mtu = Math.max(mtu, WireFormat.MAX_PACKET);
+        socket = new DatagramSocket();
+        socket.setSoTimeout(RECEIVE_TIMEOUT);
+        Thread receiver = new Thread(this::receiveLoop, "transport-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Gets a peer, handshaking with it unless it answered recently.
+     *
+     * @return the peer or <code>null</code> if it does not answer
+     */
+    public Peer connect(String name) {
+        Peer peer = peers.get(name);
+        if (peer != null && System.currentTimeMillis() - peer.handshakeTime < PEER_TIMEOUT) {
+            return peer;
+        }
+        if (peer == null) {
+            try {
+                peer = new Peer(name, InetAddress.getByName(name));
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        for (int tryCount = 0; tryCount < HANDSHAKE_TRIES; tryCount++) {
+            if (handshake(peer)) {
+                peers.put(name, peer);
+                return peer;
+            }
+        }
+        peers.remove(name);
+        return null;
+    }
+
+    /**
+     * Gets the peer to reply to a message received from the address without a handshake. A peer handshaken before is
+     * reused, otherwise the reply is sent in the binary format, which every agent sending such messages understands,
+     * in packets small enough for any agent. Such a peer is not remembered, its clock offset is not known.
+     */
+    public Peer replyTo(InetAddress address) {
+        for (Peer peer : peers.values()) {
+            if (peer.address.equals(address)) {
+                return peer;
+            }
+        }
+        Peer peer = new Peer(address.getHostAddress(), address);
+        peer.version = WireFormat.VERSION;
+        peer.compression = true;
+        return peer;
+    }
+
+    private boolean handshake(Peer peer) {
+        CompletableFuture<ComMessage> reply = new CompletableFuture<>();
+        CompletableFuture<ComMessage> pending = handshakes.putIfAbsent(peer.address, reply);
+        if (pending != null) {
+            reply = pending;
+        }
+        ComMessage request = new ComMessage();
+        request.id = UUID.randomUUID().toString();
+        request.data = "Hi".getBytes();
+        request.timeStamps = new ArrayList<>();
+        request.timeStamps.add(System.currentTimeMillis());
+        try {
+            // The handshake is sent in the legacy format, it offers the binary one to the receiver
+            sendDatagram(peer, WireFormat.encode(request, WireFormat.LEGACY));
+            ComMessage message = reply.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+            peer.version = message.version;
+            int announced = WireFormat.getMaxPacket(message);
+            peer.maxPacket = announced > 0 ? Math.min(mtu, announced) : WireFormat.MAX_PACKET;
+            peer.compression = announced > 0;
+            peer.update(message);
+            peer.handshakeTime = System.currentTimeMillis();
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            handshakes.remove(peer.address, reply);
+        }
+    }
+
+    /**
+     * Sends a message split into packets, the receiver assembles and dispatches it by its first byte.
+     */
+    public void send(Peer peer, byte[] bytes) {
+        byte[] compressed = peer.compression ? WireFormat.compress(bytes) : null;
+        if (compressed != null) {
+            bytes = compressed;
+        }
+        int chunkSize = peer.version == WireFormat.LEGACY ? WireFormat.LEGACY_CHUNK
+                : peer.maxPacket - WireFormat.MAX_HEADER;
+        int totalNumber = Math.max((bytes.length + chunkSize - 1) / chunkSize, 1);
+        String id = UUID.randomUUID().toString();
+        CommunicationMessage[] packets = new CommunicationMessage[totalNumber];
+        for (int packetNumber = 1; packetNumber <= totalNumber; packetNumber++) {
+            int startIndex = (packetNumber - 1) * chunkSize;
+            CommunicationMessage packet = new CommunicationMessage();
+            packet.id = id;
+            packet.number = packetNumber;
+            packet.totalNumber = totalNumber;
+            packet.compressed = compressed != null;
+            packet.data = Arrays.copyOfRange(bytes, startIndex, Math.min(startIndex + chunkSize, bytes.length));
+            packets[packetNumber - 1] = packet;
+        }
+        OutgoingMessage message = new OutgoingMessage(peer, packets);
+        if (peer.version != WireFormat.LEGACY) {
+            // Agents of the previous version do not request missing packets
+            outgoing.put(id, message);
+        }
+        for (CommunicationMessage packet : packets) {
+            sendPacket(message, packet);
+        }
+    }
+
+    private void sendPacket(OutgoingMessage message, CommunicationMessage packet) {
+        long sentTime = System.currentTimeMillis();
+        packet.timeStamps = new ArrayList<>();
+        packet.timeStamps.add(sentTime);
+        message.lastSent = sentTime;
+        pendingAcks.put(ackKey(packet.id, packet.number), new PendingAck(message.peer, sentTime));
+        sendDatagram(message.peer, WireFormat.encode(packet, message.peer.version));
+    }
+
+    // Sends again the packets requested by the receiver
+    private void resend(NackMessage nack) {
+        OutgoingMessage message = outgoing.get(nack.id);
+        if (message == null) {
+            return;
+        }
+        for (int number : nack.missing) {
+            if (number >= 1 && number <= message.packets.length) {
+                sendPacket(message, message.packets[number - 1]);
+            }
+        }
+    }
+
+    private void acknowledged(String id) {
+        OutgoingMessage message = outgoing.get(id);
+        if (message != null) {
+            synchronized (message) {
+                if (--message.unacknowledged <= 0) {
+                    outgoing.remove(id);
+                }
+            }
+        }
+    }
+
+    private void sendDatagram(Peer peer, byte[] data) {
+        try {
+            socket.send(new DatagramPacket(data, data.length, peer.address, PORT));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Number of sent packets waiting for an acknowledgement
+    public int getPendingAcks() {
+        return pendingAcks.size();
+    }
+
+    public Peer getPeer(String name) {
+        return peers.get(name);
+    }
+
+    // Offset of the clock of the agent at the address relative to the local clock, 0 if not known
+    public long getClockOffset(InetAddress address) {
+        for (Peer peer : peers.values()) {
+            if (peer.address.equals(address)) {
+                return peer.getClockOffset();
+            }
+        }
+        return 0;
+    }
+
+    public void close() {
+        socket.close();
+    }
+
+    private static String ackKey(String id, int number) {
+        return id + "/" + number;
+    }
+
+    private void receiveLoop() {
+        byte[] receiveData = new byte[mtu];
+        while (!socket.isClosed()) {
+            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+            try {
+                socket.receive(receivePacket);
+                long receivedTime = System.currentTimeMillis();
+                ComMessage message = WireFormat.decode(receivePacket.getData(), receivePacket.getOffset(),
+                        receivePacket.getLength());
+                message.timeStamps.add(receivedTime);
+                if (message instanceof NackMessage) {
+                    resend((NackMessage) message);
+                } else if (message instanceof CommunicationMessage) {
+                    CommunicationMessage ack = (CommunicationMessage) message;
+                    PendingAck pending = pendingAcks.remove(ackKey(ack.id, ack.number));
+                    if (pending != null) {
+                        pending.peer.update(message);
+                        acknowledged(ack.id);
+                    }
+                } else {
+                    // Agents supporting the binary format reply in it
+                    message.version = receiveData[receivePacket.getOffset()] == WireFormat.VERSION
+                            ? WireFormat.VERSION : WireFormat.LEGACY;
+                    CompletableFuture<ComMessage> handshake = handshakes.get(receivePacket.getAddress());
+                    if (handshake != null) {
+                        handshake.complete(message);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Only to purge lost acknowledgements
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    e.printStackTrace();
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Malformed reply dropped: " + e.getMessage());
+            }
+            purgeAcks();
+        }
+    }
+
+    private void purgeAcks() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge >= ACK_TIMEOUT) {
+            lastPurge = now;
+            pendingAcks.values().removeIf(pending -> now - pending.sentTime >= ACK_TIMEOUT);
+            outgoing.values().removeIf(message -> now - message.lastSent >= ACK_TIMEOUT);
+        }
+    }
+}
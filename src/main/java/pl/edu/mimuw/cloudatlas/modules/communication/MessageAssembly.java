@@ -0,0 +1,83 @@
+package pl.edu.mimuw.cloudatlas.modules.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+
+// Packets of a message received so far, marked in a bitmap by their numbers
+class MessageAssembly {
+    final String id;
+    final int totalNumber;
+    // Where the packets come from, so missing ones can be requested
+    final InetSocketAddress sender;
+    final byte version;
+    final boolean compressed;
+    private byte[][] chunks;
+    private final BitSet received;
+    private int receivedCount = 0;
+    private long lastActivity;
+    private int nackCount = 0;
+
+    MessageAssembly(String id, int totalNumber, InetSocketAddress sender, byte version, boolean compressed) {
+        this.id = id;
+        this.totalNumber = totalNumber;
+        this.sender = sender;
+        this.version = version;
+        this.compressed = compressed;
+        this.chunks = new byte[totalNumber][];
+        this.received = new BitSet(totalNumber);
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a packet, duplicates are ignored.
+     *
+     * @return whether the packet completed the message
+     */
+    synchronized boolean add(CommunicationMessage packet) {
+        int index = packet.number - 1;
+        lastActivity = System.currentTimeMillis();
+        if (received.get(index) || chunks == null) {
+            return false;
+        }
+        received.set(index);
+        chunks[index] = packet.data;
+        receivedCount++;
+        return receivedCount == totalNumber;
+    }
+
+    synchronized boolean isComplete() {
+        return receivedCount == totalNumber;
+    }
+
+    synchronized long getLastActivity() {
+        return lastActivity;
+    }
+
+    synchronized int getNackCount() {
+        return nackCount;
+    }
+
+    // Numbers of missing packets, marks that they were requested
+    synchronized int[] nack() {
+        nackCount++;
+        lastActivity = System.currentTimeMillis();
+        int[] missing = new int[Math.min(totalNumber - receivedCount, WireFormat.MAX_NACKED)];
+        int index = received.nextClearBit(0);
+        for (int i = 0; i < missing.length; i++) {
+            missing[i] = index + 1;
+            index = received.nextClearBit(index + 1);
+        }
+        return missing;
+    }
+
+    // The assembly is kept only to ignore duplicates afterwards, so the chunks are released
+    synchronized byte[] assemble() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks) {
+            data.write(chunk, 0, chunk.length);
+        }
+        chunks = null;
+        return data.toByteArray();
+    }
+}
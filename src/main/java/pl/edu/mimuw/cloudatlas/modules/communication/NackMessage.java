@@ -0,0 +1,20 @@
+package pl.edu.mimuw.cloudatlas.modules.communication;
+
+import java.util.ArrayList;
+
+// Sent by the receiver of a message to request the packets it is missing, binary format only
+public class NackMessage extends ComMessage {
+    // Packet numbers to send again
+    public int[] missing;
+
+    NackMessage() {
+
+    }
+
+    public NackMessage(String id, int[] missing) {
+        this.id = id;
+        this.missing = missing;
+        this.timeStamps = new ArrayList<>();
+        this.version = WireFormat.VERSION;
+    }
+}
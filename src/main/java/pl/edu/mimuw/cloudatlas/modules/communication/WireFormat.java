@@ -0,0 +1,276 @@
+package pl.edu.mimuw.cloudatlas.modules.communication;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import pl.edu.mimuw.cloudatlas.helpers.Helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding of datagrams exchanged by CommunicationClient and CommunicationServer.
+ *
+ * A binary datagram starts with the version byte, followed by:
+ * <pre>
+ * kind         1 byte, HANDSHAKE, DATA or DEFLATED_DATA
+ * id           16 bytes, UUID of the message (DATA only)
+ * number       4 bytes, 1-based sequence number of the packet (DATA only)
+ * totalNumber  4 bytes, number of packets of the message (DATA only)
+ * timestamps   1 byte count, then 8 bytes per timestamp in milliseconds
+ * data         the rest of the datagram, raw payload bytes
+ * </pre>
+ * DEFLATED_DATA packets carry parts of a message compressed as a whole. A reply to a handshake carries the largest
+ * datagram the replying agent receives as its 4 byte data, an agent which sends it also accepts compressed messages.
+ * A NACK datagram, sent by the receiver of an incomplete message, consists of the version byte, the kind, the id of
+ * the message, a 2 byte count and the 4 byte numbers of the missing packets.
+ * Agents of the previous version send JSON objects, which always start with '{', so the first byte tells the formats
+ * apart. A client offers the binary format in its JSON handshake and an agent that understands it replies with a binary
+ * datagram, so both formats can be used in the same system.
+ */
+public class WireFormat {
+    public static final byte LEGACY = 0;
+    public static final byte VERSION = 1;
+
+    // Size of datagrams every agent receives, including the ones of the previous version
+    public static final int MAX_PACKET = 1024;
+    // Largest datagram sent and received by default, fits in the MTU of Ethernet with IP and UDP headers
+    public static final int DEFAULT_MTU = 1400;
+    // Header of a DATA datagram with MAX_TIMESTAMPS timestamps
+    public static final int MAX_TIMESTAMPS = 4;
+    public static final int MAX_HEADER = 1 + 1 + 16 + 4 + 4 + 1 + 8 * MAX_TIMESTAMPS;
+    // Legacy JSON inflates every payload byte up to 5 characters
+    public static final int LEGACY_CHUNK = 160;
+    // Numbers of packets fitting in a single NACK datagram
+    public static final int MAX_NACKED = (MAX_PACKET - 1 - 1 - 16 - 2) / 4;
+
+    private static final byte HANDSHAKE = 0;
+    private static final byte DATA = 1;
+    private static final byte NACK = 2;
+    private static final byte DEFLATED_DATA = 3;
+    // Messages are compressed only from this size and only if it saves at least an eighth
+    private static final int COMPRESSION_THRESHOLD = 256;
+    // Limit of a decompressed message, a corrupted one must not exhaust memory
+    private static final int MAX_DECOMPRESSED = 16 << 20;
+    private static final String HANDSHAKE_ID = "0";
+
+    private static final Type JSON_TYPE = new TypeToken<HashMap<String, Object>>(){}.getType();
+    // Gson is thread safe, so one instance serves all the datagrams
+    private static final Gson GSON = new Gson();
+
+    public static byte[] encode(ComMessage message, byte version) {
+        if (version == LEGACY) {
+            return encodeLegacy(message);
+        }
+        return encodeBinary(message, message.data);
+    }
+
+    /**
+     * Encodes the reply to a received datagram, in the format expected by its sender. Binary replies carry only the
+     * header, since the sender needs just the timestamps.
+     */
+    public static byte[] encodeReply(ComMessage message) {
+        if (message.version == LEGACY) {
+            return encodeLegacy(message);
+        }
+        return encodeBinary(message, null);
+    }
+
+    /**
+     * Encodes the reply to a received handshake, announcing the largest datagram this agent receives.
+     */
+    public static byte[] encodeHandshakeReply(ComMessage message, int maxPacket) {
+        if (message.version == LEGACY) {
+            return encodeLegacy(message);
+        }
+        return encodeBinary(message, ByteBuffer.allocate(4).putInt(maxPacket).array());
+    }
+
+    /**
+     * @return the largest datagram announced in a handshake reply or 0 if the replying agent did not announce it
+     */
+    public static int getMaxPacket(ComMessage handshakeReply) {
+        if (handshakeReply.version == LEGACY || handshakeReply.data == null || handshakeReply.data.length < 4) {
+            return 0;
+        }
+        return ByteBuffer.wrap(handshakeReply.data).getInt();
+    }
+
+    /**
+     * @return the compressed message or <code>null</code> if compression does not pay off
+     */
+    public static byte[] compress(byte[] bytes) {
+        if (bytes.length < COMPRESSION_THRESHOLD) {
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+        int limit = bytes.length - bytes.length / 8;
+        byte[] compressed = new byte[limit];
+        int length = 0;
+        while (!deflater.finished() && length < limit) {
+            length += deflater.deflate(compressed, length, limit - length);
+        }
+        boolean finished = deflater.finished();
+        deflater.end();
+        return finished ? Arrays.copyOf(compressed, length) : null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a correct compressed message
+     */
+    public static byte[] decompress(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(bytes);
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream(bytes.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed message");
+                }
+                decompressed.write(buffer, 0, length);
+                if (decompressed.size() > MAX_DECOMPRESSED) {
+                    throw new IllegalArgumentException("Compressed message too long");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed message", e);
+        } finally {
+            inflater.end();
+        }
+        return decompressed.toByteArray();
+    }
+
+    private static byte[] encodeBinary(ComMessage message, byte[] data) {
+        boolean handshake = !(message instanceof CommunicationMessage);
+        int timestamps = Math.min(message.timeStamps.size(), MAX_TIMESTAMPS);
+        data = data == null ? new byte[0] : data;
+        ByteBuffer buffer = ByteBuffer.allocate((handshake ? 3 : MAX_HEADER - 8 * MAX_TIMESTAMPS) + 8 * timestamps
+                + data.length);
+        buffer.put(VERSION);
+        buffer.put(handshake ? HANDSHAKE : ((CommunicationMessage) message).compressed ? DEFLATED_DATA : DATA);
+        if (!handshake) {
+            CommunicationMessage packet = (CommunicationMessage) message;
+            UUID id = UUID.fromString(packet.id);
+            buffer.putLong(id.getMostSignificantBits());
+            buffer.putLong(id.getLeastSignificantBits());
+            buffer.putInt(packet.number);
+            buffer.putInt(packet.totalNumber);
+        }
+        buffer.put((byte) timestamps);
+        for (int i = 0; i < timestamps; i++) {
+            buffer.putLong(message.timeStamps.get(i));
+        }
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    public static byte[] encodeNack(NackMessage message) {
+        int count = Math.min(message.missing.length, MAX_NACKED);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + 16 + 2 + 4 * count);
+        buffer.put(VERSION);
+        buffer.put(NACK);
+        UUID id = UUID.fromString(message.id);
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(message.missing[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a datagram in any supported format.
+     *
+     * @return a CommunicationMessage for a part of a message, a NackMessage for a request of missing parts or a
+     * ComMessage for a handshake
+     * @throws IllegalArgumentException if the datagram is malformed or comes from an unknown version
+     */
+    public static ComMessage decode(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Empty datagram");
+        }
+        if (bytes[offset] == '{') {
+            return decodeLegacy(new String(bytes, offset, length, StandardCharsets.UTF_8));
+        }
+        if (bytes[offset] != VERSION) {
+            throw new IllegalArgumentException("Unsupported version of a datagram: " + bytes[offset]);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset + 1, length - 1);
+            byte kind = buffer.get();
+            ComMessage message;
+            if (kind == DATA || kind == DEFLATED_DATA) {
+                CommunicationMessage packet = new CommunicationMessage();
+                packet.compressed = kind == DEFLATED_DATA;
+                packet.id = new UUID(buffer.getLong(), buffer.getLong()).toString();
+                packet.number = buffer.getInt();
+                packet.totalNumber = buffer.getInt();
+                message = packet;
+            } else if (kind == NACK) {
+                NackMessage nack = new NackMessage();
+                nack.id = new UUID(buffer.getLong(), buffer.getLong()).toString();
+                nack.missing = new int[buffer.getShort() & 0xffff];
+                for (int i = 0; i < nack.missing.length; i++) {
+                    nack.missing[i] = buffer.getInt();
+                }
+                nack.version = VERSION;
+                nack.timeStamps = new ArrayList<>();
+                return nack;
+            } else if (kind == HANDSHAKE) {
+                message = new ComMessage();
+                message.id = HANDSHAKE_ID;
+            } else {
+                throw new IllegalArgumentException("Unknown kind of a datagram: " + kind);
+            }
+            message.version = VERSION;
+            int timestamps = buffer.get();
+            message.timeStamps = new ArrayList<>(timestamps + 2);
+            for (int i = 0; i < timestamps; i++) {
+                message.timeStamps.add(buffer.getLong());
+            }
+            message.data = new byte[buffer.remaining()];
+            buffer.get(message.data);
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated datagram", e);
+        }
+    }
+
+    private static byte[] encodeLegacy(ComMessage message) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put("id", message.id);
+        if (message instanceof CommunicationMessage) {
+            request.put("pn", ((CommunicationMessage) message).number);
+            request.put("tn", ((CommunicationMessage) message).totalNumber);
+        } else {
+            // Offer the binary format, agents of the previous version ignore this field
+            request.put("v", VERSION);
+        }
+        request.put("data", Helpers.byteArrayToList(message.data == null ? new byte[0] : message.data));
+        request.put("ts", message.timeStamps);
+        return GSON.toJson(request).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ComMessage decodeLegacy(String json) {
+        HashMap<String, Object> map = GSON.fromJson(json, JSON_TYPE);
+        ComMessage message = map.containsKey("pn") ? new CommunicationMessage(map) : new ComMessage(map);
+        Object version = map.get("v");
+        // A handshake offering the binary format is answered in it
+        message.version = version == null ? LEGACY : (byte) Math.min(((Double) version).intValue(), VERSION);
+        return message;
+    }
+}
@@ -0,0 +1,183 @@
+package pl.edu.mimuw.cloudatlas.modules.gossip;
+
+import pl.edu.mimuw.cloudatlas.model.Attribute;
+import pl.edu.mimuw.cloudatlas.model.AttributesMap;
+import pl.edu.mimuw.cloudatlas.model.Value;
+import pl.edu.mimuw.cloudatlas.model.ZMICodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message of the gossip exchange. Every message lists zones by their path names, a zone either with attributes
+ * (changed after the version known by the receiver, each with its own version) or without them (a version only):
+ * <ul>
+ * <li>OFFER - a digest, the sender has the zones in the given versions, its own zone first;</li>
+ * <li>REQUEST - the sender knows the zones without attributes in the given versions and asks for newer attributes,
+ * zones with attributes are the ones the sender has fresher;</li>
+ * <li>DELTA - attributes of the requested zones.</li>
+ * </ul>
+ * A version of a zone is the greatest version of its attributes.
+ * <p>
+ * All the zones of an exchange travel in one message, so every message of a gossip round is reassembled once
+ * regardless of the number of zones, and only the initiator handshakes. Versions and timestamps are in the clock of
+ * the receiver of OFFER and DELTA, and in the clock of the sender of REQUEST. The header holds the names of all the attributes in the message, zones refer to
+ * them by indices, so names repeated in every zone are sent once:
+ * <pre>
+ * 'G' version kind
+ * names count (2 bytes), names
+ * zones count (4 bytes), for every zone:
+ *   path, version (8 bytes), has attributes (1 byte)
+ *   attributes count (4 bytes), for every attribute:
+ *     name index (2 bytes), version (8 bytes), value length (4 bytes), value encoded by ZMICodec
+ * </pre>
+ */
+public class GossipMessage {
+    public static final byte MAGIC = 'G';
+    public static final byte VERSION = 4;
+    private static final int MAX_NAMES = 0xffff;
+
+    public enum Kind {
+        OFFER, REQUEST, DELTA
+    }
+
+    public static class Zone {
+        public final String path;
+        public final long version;
+        // Null if only the version is sent
+        public final AttributesMap attributes;
+
+        public Zone(String path, long version, AttributesMap attributes) {
+            this.path = path;
+            this.version = version;
+            this.attributes = attributes;
+        }
+    }
+
+    private final Kind kind;
+    private final List<Zone> zones;
+
+    public GossipMessage(Kind kind, List<Zone> zones) {
+        this.kind = kind;
+        this.zones = zones;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public List<Zone> getZones() {
+        return zones;
+    }
+
+    public static boolean isGossip(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC;
+    }
+
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(kind.ordinal());
+            Map<String, Integer> names = new LinkedHashMap<>();
+            for (Zone zone : zones) {
+                if (zone.attributes != null) {
+                    for (Map.Entry<Attribute, Value> entry : zone.attributes) {
+                        names.putIfAbsent(entry.getKey().getName(), names.size());
+                    }
+                }
+            }
+            if (names.size() > MAX_NAMES) {
+                throw new IllegalArgumentException("Too many attribute names in a gossip message: " + names.size());
+            }
+            out.writeShort(names.size());
+            for (String name : names.keySet()) {
+                out.writeUTF(name);
+            }
+            out.writeInt(zones.size());
+            for (Zone zone : zones) {
+                out.writeUTF(zone.path);
+                out.writeLong(zone.version);
+                out.writeBoolean(zone.attributes != null);
+                if (zone.attributes != null) {
+                    out.writeInt(zone.attributes.size());
+                    for (Map.Entry<Attribute, Value> entry : zone.attributes) {
+                        out.writeShort(names.get(entry.getKey().getName()));
+                        out.writeLong(zone.attributes.getVersion(entry.getKey()));
+                        byte[] value = ZMICodec.encodeValue(entry.getValue());
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a correct gossip message
+     */
+    public static GossipMessage decode(byte[] bytes) {
+        if (!isGossip(bytes)) {
+            throw new IllegalArgumentException("Not a gossip message");
+        }
+        if (bytes[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported version of a gossip message: " + bytes[1]);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 2, bytes.length - 2));
+            int kindIndex = in.readByte();
+            if (kindIndex < 0 || kindIndex >= Kind.values().length) {
+                throw new IllegalArgumentException("Unknown kind of a gossip message: " + kindIndex);
+            }
+            Kind kind = Kind.values()[kindIndex];
+            Attribute[] names = new Attribute[in.readUnsignedShort()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = Attribute.of(in.readUTF());
+            }
+            int count = in.readInt();
+            List<Zone> zones = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long version = in.readLong();
+                AttributesMap attributes = null;
+                if (in.readBoolean()) {
+                    attributes = new AttributesMap();
+                    int attributeCount = in.readInt();
+                    for (int j = 0; j < attributeCount; j++) {
+                        int nameIndex = in.readUnsignedShort();
+                        if (nameIndex >= names.length) {
+                            throw new IllegalArgumentException("Incorrect index of an attribute name: " + nameIndex);
+                        }
+                        Attribute attribute = names[nameIndex];
+                        long attributeVersion = in.readLong();
+                        int length = in.readInt();
+                        if (length < 0 || length > in.available()) {
+                            throw new IllegalArgumentException("Incorrect length of a value: " + length);
+                        }
+                        byte[] value = new byte[length];
+                        in.readFully(value);
+                        attributes.addOrChange(attribute, ZMICodec.decodeValue(value), attributeVersion);
+                    }
+                }
+                zones.add(new Zone(path, version, attributes));
+            }
+            return new GossipMessage(kind, zones);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Malformed gossip message", e);
+        }
+    }
+}
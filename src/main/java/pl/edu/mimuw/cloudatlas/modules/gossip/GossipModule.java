@@ -0,0 +1,234 @@
+package pl.edu.mimuw.cloudatlas.modules.gossip;
+
+import pl.edu.mimuw.cloudatlas.interpreter.Main;
+import pl.edu.mimuw.cloudatlas.model.Attribute;
+import pl.edu.mimuw.cloudatlas.model.AttributesMap;
+import pl.edu.mimuw.cloudatlas.model.Value;
+import pl.edu.mimuw.cloudatlas.model.ValueString;
+import pl.edu.mimuw.cloudatlas.model.ValueTime;
+import pl.edu.mimuw.cloudatlas.model.ZMI;
+import pl.edu.mimuw.cloudatlas.modules.communication.CommunicationClient;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Push-pull delta gossip. The initiator offers a digest of all the zones it knows, with the version of the newest
+ * attribute of each zone. The receiver requests zones it knows in older versions, telling which ones, and in the same
+ * reply sends the zones it knows in newer versions. The initiator answers the requests with the attributes changed
+ * after the known versions only:
+ * <pre>
+ * A -> B  OFFER   (zone, version)...
+ * B -> A  REQUEST (zone, version known by B)... (zone, version, attributes newer than A's version)...
+ * A -> B  DELTA   (zone, version, attributes newer than B's version)...
+ * </pre>
+ * So both agents learn about all the zones known by either of them, not only about the zone of the other agent.
+ * Zones above the own zone are computed locally by installed queries, so they are neither offered nor merged, and the
+ * own zone is never overwritten by other agents.
+ * Only the initiator handshakes, the other messages are sent back to the address the previous one came from. So the
+ * initiator is the one knowing the offset of the clock of the other agent, and it converts versions and timestamps both
+ * ways: the ones it sends to the clock of the receiver and the ones it receives to its own.
+ * Every message is a separate datagram exchange, so a lost message just ends the exchange and the next gossip round
+ * repeats it.
+ */
+public class GossipModule {
+    public static long getZoneVersion(ZMI zmi) {
+        // A snapshot, so values and versions come from the same state of a zone changed concurrently
+        AttributesMap attributes = zmi.getAttributes().clone();
+        long version = 0;
+        for (Map.Entry<Attribute, Value> entry : attributes) {
+            version = Math.max(version, attributes.getVersion(entry.getKey()));
+        }
+        return version;
+    }
+
+    public static String getPath(ZMI zmi) {
+        String path = ((ValueString) zmi.getAttributes().get("owner")).getValue();
+        return path == null ? "/" : path;
+    }
+
+    // Whether the zone is strictly above the given one
+    private static boolean isAncestor(String path, String of) {
+        return !path.equals(of) && (path.equals("/") || of.startsWith(path + "/"));
+    }
+
+    // Starts an exchange with the connected agent by offering the digest of all known zones
+    public void offer(CommunicationClient client) {
+        List<GossipMessage.Zone> digest = new ArrayList<>();
+        for (Map.Entry<String, ZMI> zone : getZones().entrySet()) {
+            digest.add(new GossipMessage.Zone(zone.getKey(), getZoneVersion(zone.getValue()), null));
+        }
+        GossipMessage offer = new GossipMessage(GossipMessage.Kind.OFFER, digest);
+        client.sendMessage(toLocalTime(offer, -client.getClockOffset()).encode());
+    }
+
+    /**
+     * Handles a message received from the agent at the specified address, replying to it if needed.
+     */
+    public void receive(byte[] bytes, InetAddress sender) {
+        GossipMessage message;
+        try {
+            message = GossipMessage.decode(bytes);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Gossip message dropped: " + e.getMessage());
+            return;
+        }
+        // Offers and deltas come in the local clock already, requests are answered by the initiator
+        switch (message.getKind()) {
+            case OFFER:
+                send(sender, request(message), 0);
+                break;
+            case REQUEST:
+                long clockOffset = CommunicationClient.getClockOffset(sender);
+                GossipMessage request = toLocalTime(message, clockOffset);
+                merge(request);
+                send(sender, delta(request), clockOffset);
+                break;
+            case DELTA:
+                merge(message);
+                break;
+        }
+    }
+
+    // Replies over the peer the message came from, in the clock of the receiver, which is ahead by clockOffset
+    private static void send(InetAddress receiver, GossipMessage message, long clockOffset) {
+        if (!message.getZones().isEmpty()) {
+            CommunicationClient client = new CommunicationClient();
+            client.replyTo(receiver);
+            client.sendMessage(toLocalTime(message, -clockOffset).encode());
+        }
+    }
+
+    /**
+     * Converts versions and freshness timestamps of zones received from an agent whose clock is ahead of the local
+     * one by the specified offset, so they are compared with the local ones as if stamped by the local clock.
+     * Otherwise an agent with a fast clock would win every merge and its stale data would never be replaced.
+     */
+    public static GossipMessage toLocalTime(GossipMessage message, long clockOffset) {
+        if (clockOffset == 0) {
+            return message;
+        }
+        List<GossipMessage.Zone> zones = new ArrayList<>();
+        for (GossipMessage.Zone zone : message.getZones()) {
+            AttributesMap attributes = zone.attributes == null ? null : toLocalTime(zone.attributes, clockOffset);
+            zones.add(new GossipMessage.Zone(zone.path, ZMI.toLocalVersion(zone.version, clockOffset), attributes));
+        }
+        return new GossipMessage(message.getKind(), zones);
+    }
+
+    public static AttributesMap toLocalTime(AttributesMap attributes, long clockOffset) {
+        if (clockOffset == 0) {
+            return attributes;
+        }
+        AttributesMap converted = new AttributesMap();
+        for (Map.Entry<Attribute, Value> entry : attributes) {
+            Value value = entry.getValue();
+            if (entry.getKey().getName().equals("timestamp") && value instanceof ValueTime && !value.isNull()) {
+                value = new ValueTime(((ValueTime) value).getValue() - clockOffset);
+            }
+            converted.addOrChange(entry.getKey(), value,
+                    ZMI.toLocalVersion(attributes.getVersion(entry.getKey()), clockOffset));
+        }
+        return converted;
+    }
+
+    // Zones known by this agent by their paths, the own zone first, without the ones computed locally
+    private static Map<String, ZMI> getZones() {
+        Map<String, ZMI> zones = new LinkedHashMap<>();
+        ZMI node = Main.getNode();
+        String nodePath = getPath(node);
+        zones.put(nodePath, node);
+        collectZones(Main.root, nodePath, zones);
+        return zones;
+    }
+
+    private static void collectZones(ZMI zmi, String nodePath, Map<String, ZMI> zones) {
+        String path = getPath(zmi);
+        if (!isAncestor(path, nodePath)) {
+            zones.putIfAbsent(path, zmi);
+        }
+        for (ZMI son : zmi.getSons()) {
+            collectZones(son, nodePath, zones);
+        }
+    }
+
+    private GossipMessage request(GossipMessage offer) {
+        Map<String, ZMI> zones = getZones();
+        String nodePath = getPath(Main.getNode());
+        String senderPath = offer.getZones().isEmpty() ? null : offer.getZones().get(0).path;
+        List<GossipMessage.Zone> reply = new ArrayList<>();
+        Set<String> offered = new HashSet<>();
+        for (GossipMessage.Zone zone : offer.getZones()) {
+            offered.add(zone.path);
+            if (isAncestor(zone.path, nodePath)) {
+                continue;
+            }
+            ZMI local = zones.get(zone.path);
+            long known = local == null ? 0 : getZoneVersion(local);
+            if (zone.version > known && !zone.path.equals(nodePath)) {
+                reply.add(new GossipMessage.Zone(zone.path, known, null));
+            } else if (known > zone.version) {
+                reply.add(changedAfter(zone.path, local, zone.version));
+            }
+        }
+        // Zones the initiator does not know at all, except the ones it computes itself
+        for (Map.Entry<String, ZMI> zone : zones.entrySet()) {
+            if (!offered.contains(zone.getKey()) && (senderPath == null || !isAncestor(zone.getKey(), senderPath))) {
+                reply.add(changedAfter(zone.getKey(), zone.getValue(), 0));
+            }
+        }
+        return new GossipMessage(GossipMessage.Kind.REQUEST, reply);
+    }
+
+    private GossipMessage delta(GossipMessage request) {
+        String nodePath = getPath(Main.getNode());
+        List<GossipMessage.Zone> reply = new ArrayList<>();
+        for (GossipMessage.Zone zone : request.getZones()) {
+            if (zone.attributes != null || isAncestor(zone.path, nodePath)) {
+                continue;
+            }
+            ZMI zmi = Main.root.sonForPath(zone.path);
+            if (zmi != null) {
+                GossipMessage.Zone changed = changedAfter(zone.path, zmi, zone.version);
+                if (changed.attributes.size() > 0) {
+                    reply.add(changed);
+                }
+            }
+        }
+        return new GossipMessage(GossipMessage.Kind.DELTA, reply);
+    }
+
+    private static GossipMessage.Zone changedAfter(String path, ZMI zmi, long known) {
+        AttributesMap changed = new AttributesMap();
+        AttributesMap attributes = zmi.getAttributes().clone();
+        long version = 0;
+        for (Map.Entry<Attribute, Value> entry : attributes) {
+            long attributeVersion = attributes.getVersion(entry.getKey());
+            version = Math.max(version, attributeVersion);
+            if (attributeVersion > known) {
+                changed.addOrChange(entry.getKey(), entry.getValue(), attributeVersion);
+            }
+        }
+        return new GossipMessage.Zone(path, version, changed);
+    }
+
+    private void merge(GossipMessage message) {
+        String nodePath = getPath(Main.getNode());
+        Map<String, AttributesMap> zones = new LinkedHashMap<>();
+        for (GossipMessage.Zone zone : message.getZones()) {
+            if (zone.attributes == null || zone.path.equals(nodePath) || isAncestor(zone.path, nodePath)) {
+                continue;
+            }
+            zones.put(zone.path, zone.attributes);
+        }
+        if (!zones.isEmpty()) {
+            Main.mergeZones(zones);
+            System.out.println("Delta merged: " + zones.size() + " zones");
+        }
+    }
+}
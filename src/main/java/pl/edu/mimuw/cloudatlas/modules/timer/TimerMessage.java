@@ -1,22 +1,19 @@
 package pl.edu.mimuw.cloudatlas.modules.timer;
 
 import java.util.Date;
-import java.util.Queue;
 import java.util.concurrent.Callable;
-import java.util.function.Function;
 
-public class TimerMessage implements Comparable {
+public class TimerMessage implements Comparable<TimerMessage> {
     public String requestID;
     private Long delay;
     private Date delayDate;
-    private Callable function;
-    private Long firingTime;
+    private Callable<?> function;
 
     public Long getFiringTime() {
         return this.delay + this.delayDate.getTime();
     }
 
-    TimerMessage(String requestID, Long delay, Date delayDate, Callable function) {
+    public TimerMessage(String requestID, Long delay, Date delayDate, Callable<?> function) {
         this.requestID = requestID;
         this.delay = delay;
         this.delayDate = delayDate;
@@ -24,11 +21,8 @@ public class TimerMessage implements Comparable {
     }
 
     @Override
-    public int compareTo(Object o) {
-        if (this.getFiringTime() > ((TimerMessage) o).getFiringTime()) {
-            return 1;
-        }
-        return 0;
+    public int compareTo(TimerMessage o) {
+        return Long.compare(this.getFiringTime(), o.getFiringTime());
     }
 
     public void performCallback() {
@@ -1,78 +1,230 @@
 package pl.edu.mimuw.cloudatlas.modules.timer;
 
-import java.util.*;
-import java.util.Timer;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Timer service shared by the modules of an agent. Pending messages are kept in a hierarchical timing wheel, so both
+ * scheduling and cancelling a message by its request ID take constant time, regardless of the number of pending ones.
+ *
+ * A single thread advances the wheel every tick. Callbacks are run on a separate executor, so a slow callback does not
+ * delay the others. Messages fire with the precision of one tick, never earlier than requested.
+ */
 public class TimerModule {
+    // Every level of the wheel has 2^WHEEL_BITS slots, a slot of level k spans 2^(k * WHEEL_BITS) ticks
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
 
-//    private static Queue<TimerModule> MessageQueue;
-    private ArrayList messages = new ArrayList<TimerMessage>();
-    private Sleeper sleeper = null;
+    private final long tickNanos;
+    private final long start;
+    private final Slot[][] wheel = new Slot[LEVELS][WHEEL_SIZE];
+    private final HashMap<String, Timeout> pending = new HashMap<>();
+    private final Executor callbacks;
+    private final ExecutorService ownCallbacks;
+    private final Thread ticker;
+    // The last tick whose messages were fired, guarded by this
+    private long currentTick = 0;
+    private volatile boolean running = true;
 
-    // Private Sleeper class for callback invocation
-    private class Sleeper {
-        private Timer timer = new Timer();
-        private String headMessageID = null;
-        private TimerModule module = null;
+    // A doubly linked list of timeouts, which allows to unlink any of them in constant time
+    private static class Slot {
+        private Timeout head;
 
-        Sleeper(TimerModule module) {
-            this.module = module;
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
         }
 
-        void wait(Long duration) {
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.slot = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
 
+        Timeout clear() {
+            Timeout list = head;
+            head = null;
+            return list;
         }
+    }
 
-        void notify(TimerMessage message) {
-            if (this.headMessageID.equals(message.requestID)) {
-                return;
-            }
+    private static class Timeout {
+        private final TimerMessage message;
+        private final long deadline;
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
 
-            this.headMessageID = message.requestID;
-            timer.cancel(); // Stop previous timer
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        message.performCallback();
-                        module.removeMessage(message.requestID);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            }, 0, 0);
+        Timeout(TimerMessage message, long deadline) {
+            this.message = message;
+            this.deadline = deadline;
         }
     }
 
-    TimerModule() {
-        this.sleeper = new Sleeper(this);
+    /**
+     * Creates a timer with 10 ms ticks, running callbacks on a pool with a thread per available processor.
+     */
+    public TimerModule() {
+        this(10, null);
     }
 
-    public static void main(String[] args) {
-        TimerModule timer = new TimerModule();
-        Callable a = new Callable() {
-            @Override
-            public Object call() throws Exception {
-                System.out.println("completion fired");
-                return null;
+    /**
+     * Creates a timer and starts its thread.
+     *
+     * @param tickMillis duration of a tick in milliseconds, the precision of the timer
+     * @param callbacks executor running the callbacks, or <code>null</code> to use a pool owned by this timer
+     */
+    public TimerModule(long tickMillis, Executor callbacks) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("The tick must be positive, got " + tickMillis + ".");
+        }
+        for (Slot[] level : wheel) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                level[i] = new Slot();
             }
-        };
-        TimerMessage message = new TimerMessage("1", 3l, new Date(), a);
-        TimerMessage message1 = new TimerMessage("2", 5l, new Date(), a);
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        if (callbacks == null) {
+            this.ownCallbacks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "timer-callback");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.callbacks = ownCallbacks;
+        } else {
+            this.ownCallbacks = null;
+            this.callbacks = callbacks;
+        }
+        this.start = System.nanoTime();
+        this.ticker = new Thread(this::run, "timer-tick");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
     }
 
+    /**
+     * Schedules the message to fire at its firing time. A pending message with the same request ID is replaced.
+     */
     public void addMessage(TimerMessage message) {
-        this.messages.add(message);
-        Collections.sort(messages);
-        this.sleeper.notify((TimerMessage) messages.get(0));
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(message.getFiringTime() - System.currentTimeMillis());
+        long now = System.nanoTime() - start;
+        // Rounded up, so the message never fires earlier than requested
+        long deadline = Math.floorDiv(now + Math.max(delayNanos, 0) + tickNanos - 1, tickNanos);
+        synchronized (this) {
+            Timeout previous = pending.remove(message.requestID);
+            if (previous != null) {
+                previous.slot.remove(previous);
+            }
+            Timeout timeout = new Timeout(message, Math.max(deadline, currentTick + 1));
+            pending.put(message.requestID, timeout);
+            place(timeout);
+        }
+    }
+
+    /**
+     * Schedules the callback to be called after the delay in milliseconds.
+     */
+    public void schedule(String requestID, long delay, Callable<?> callback) {
+        addMessage(new TimerMessage(requestID, delay, new Date(), callback));
+    }
+
+    /**
+     * Cancels the pending message with the given request ID. Does nothing if it has already fired or does not exist.
+     *
+     * @return whether a pending message was cancelled
+     */
+    public synchronized boolean removeMessage(String messageID) {
+        Timeout timeout = pending.remove(messageID);
+        if (timeout == null) {
+            return false;
+        }
+        timeout.slot.remove(timeout);
+        return true;
     }
 
-    public void removeMessage(String messageID) {
-        for (Iterator<TimerMessage> iterator = messages.iterator(); iterator.hasNext(); ) {
-            if (iterator.next().requestID == messageID)
-                iterator.remove();
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        ticker.interrupt();
+        if (ownCallbacks != null) {
+            ownCallbacks.shutdown();
+        }
+    }
+
+    // Puts the timeout to the lowest level whose span covers its distance from the current tick
+    private void place(Timeout timeout) {
+        long delta = Math.max(timeout.deadline - currentTick, 0);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        // Timeouts beyond the range of the wheel wait in the farthest slot and are placed again when it is reached
+        long tick = Math.min(timeout.deadline, currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1);
+        wheel[level][(int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK].add(timeout);
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            tick++;
+            long sleep = start + tick * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            advance(tick);
+        }
+    }
+
+    private void advance(long tick) {
+        Timeout expired;
+        synchronized (this) {
+            currentTick = tick;
+            // Higher levels first, their timeouts may move down to the slots processed next
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    Timeout timeout = wheel[level][(int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK].clear();
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        place(timeout);
+                        timeout = next;
+                    }
+                }
+            }
+            expired = wheel[0][(int) tick & WHEEL_MASK].clear();
+            for (Timeout timeout = expired; timeout != null; timeout = timeout.next) {
+                pending.remove(timeout.message.requestID);
+            }
+        }
+        while (expired != null) {
+            TimerMessage message = expired.message;
+            callbacks.execute(message::performCallback);
+            expired = expired.next;
         }
-        this.sleeper.notify((TimerMessage) messages.get(0));
     }
 }
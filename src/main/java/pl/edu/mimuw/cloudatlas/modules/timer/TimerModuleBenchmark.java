@@ -0,0 +1,127 @@
+package pl.edu.mimuw.cloudatlas.modules.timer;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares TimerModule with java.util.Timer holding many pending timeouts. Run with an optional number of timeouts
+ * (100000 by default) and of rounds (5 by default):
+ * <pre>
+ * java -cp target/classes pl.edu.mimuw.cloudatlas.modules.timer.TimerModuleBenchmark 100000 5
+ * </pre>
+ * Every round schedules the timeouts with delays of up to a minute and cancels them all, then schedules them with
+ * delays of up to a second and waits until all of them fire. The first round warms up and is not reported.
+ */
+public class TimerModuleBenchmark {
+    private static final long LONG_DELAY = 60000;
+    private static final long SHORT_DELAY = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int timeouts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println(timeouts + " timeouts, " + rounds + " rounds");
+
+        TimerModule module = new TimerModule();
+        Timer timer = new Timer(true);
+        for (int round = 0; round <= rounds; round++) {
+            boolean report = round > 0;
+            benchmarkModule(module, timeouts, report);
+            benchmarkTimer(timer, timeouts, report);
+        }
+        module.shutdown();
+        timer.cancel();
+        System.exit(0);
+    }
+
+    private static void benchmarkModule(TimerModule module, int timeouts, boolean report) throws Exception {
+        Random random = new Random(42);
+        String[] ids = new String[timeouts];
+        for (int i = 0; i < timeouts; i++) {
+            ids[i] = Integer.toString(i);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < timeouts; i++) {
+            module.schedule(ids[i], 1 + random.nextInt((int) LONG_DELAY), () -> null);
+        }
+        long scheduled = System.nanoTime();
+        for (int i = 0; i < timeouts; i++) {
+            module.removeMessage(ids[i]);
+        }
+        long cancelled = System.nanoTime();
+
+        CountDownLatch latch = new CountDownLatch(timeouts);
+        AtomicLong lateness = new AtomicLong();
+        long fireStart = System.nanoTime();
+        for (int i = 0; i < timeouts; i++) {
+            long delay = random.nextInt((int) SHORT_DELAY);
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            module.schedule(ids[i], delay, () -> {
+                lateness.addAndGet(System.nanoTime() - due);
+                latch.countDown();
+                return null;
+            });
+        }
+        latch.await();
+        long fired = System.nanoTime();
+
+        if (report) {
+            print("TimerModule", timeouts, scheduled - start, cancelled - scheduled, fired - fireStart,
+                    lateness.get());
+        }
+    }
+
+    private static void benchmarkTimer(Timer timer, int timeouts, boolean report) throws Exception {
+        Random random = new Random(42);
+        TimerTask[] tasks = new TimerTask[timeouts];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < timeouts; i++) {
+            tasks[i] = new TimerTask() {
+                @Override
+                public void run() {
+                }
+            };
+            timer.schedule(tasks[i], 1 + random.nextInt((int) LONG_DELAY));
+        }
+        long scheduled = System.nanoTime();
+        // Cancelled tasks stay in the queue of the timer until it is purged
+        for (int i = 0; i < timeouts; i++) {
+            tasks[i].cancel();
+        }
+        timer.purge();
+        long cancelled = System.nanoTime();
+
+        CountDownLatch latch = new CountDownLatch(timeouts);
+        AtomicLong lateness = new AtomicLong();
+        long fireStart = System.nanoTime();
+        for (int i = 0; i < timeouts; i++) {
+            long delay = random.nextInt((int) SHORT_DELAY);
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    lateness.addAndGet(System.nanoTime() - due);
+                    latch.countDown();
+                }
+            }, delay);
+        }
+        latch.await();
+        long fired = System.nanoTime();
+
+        if (report) {
+            print("java.util.Timer", timeouts, scheduled - start, cancelled - scheduled, fired - fireStart,
+                    lateness.get());
+        }
+    }
+
+    private static void print(String name, int timeouts, long schedule, long cancel, long fire, long lateness) {
+        System.out.println(String.format("%-16s schedule %8.1f ns/op   cancel %8.1f ns/op   all fired after %7.1f ms"
+                + "   mean lateness %6.2f ms", name, (double) schedule / timeouts, (double) cancel / timeouts,
+                fire / 1e6, lateness / 1e6 / timeouts));
+    }
+}